@@ -76,6 +76,13 @@ public class BackplaneConfig {
         return max == null ? BackplaneConfig.BP_MAX_MESSAGES_DEFAULT : max;
     }
 
+    /**
+     * @return true if blocking /v2/messages requests should be suspended instead of holding a thread while waiting
+     */
+    public static boolean isAsyncMessagesEnabled() {
+        return ConfigDAOs.serverConfigDao().oneServerConfig().get().isEnabled(ServerConfigFields.V2_MESSAGES_ASYNC());
+    }
+
     public static boolean isLeaderDisabled() {
         // skip DAO layer, not so crazy about editing serialized streams for debug, yay FED-76
         return isDebugMode() && Redis.getInstance().get(EC2InstanceId) != null;
@@ -166,7 +173,11 @@ public class BackplaneConfig {
         // todo: replace with this after transition to new serialization is complete
         //initZk("/v1_worker", new RedisMessageProcessor<Backplane1MessageFields.EnumVal, Backplane1Message>(BP1DAOs.messageDao()));
         initZk("/v1_worker", new RedisBackplane1DualFormatMessageProcessor(BP1DAOs.messageDao()));
-        initZk("/v2_worker", new RedisMessageProcessor<Backplane2MessageFields.EnumVal, Backplane2Message>(BP2DAOs.messageDao()));
+        // one leader per v2 message processor shard, the first shard keeps the pre-sharding leader path
+        for (int shard = 0; shard < BP2DAOs.messageDao().processorShards(); shard++) {
+            initZk(shard == 0 ? "/v2_worker" : "/v2_worker_" + shard,
+                    new RedisMessageProcessor<Backplane2MessageFields.EnumVal, Backplane2Message>(BP2DAOs.messageDao(), shard));
+        }
     }
 
     private void initZk(String leaderPath, LeaderSelectorListener listener) {
@@ -190,6 +201,8 @@ public class BackplaneConfig {
     @PreDestroy
     private void cleanup() {
         Metrics.shutdown();
+        BP1DAOs.messageNotifier().shutdown();
+        BP2DAOs.messageNotifier().shutdown();
         for (Map.Entry<String, ExecutorService> serviceEntry : backgroundServices.entrySet()) {
             shutdownExecutor(serviceEntry.getKey(), serviceEntry.getValue());
         }
@@ -20,8 +20,10 @@ import com.janrain.backplane.common.AuthException;
 import com.janrain.backplane.common.BackplaneServerException;
 import com.janrain.backplane.common.DateTimeUtils;
 import com.janrain.backplane.common.HmacHashUtils;
+import com.janrain.backplane.common.QueueFullException;
 import com.janrain.backplane.config.BackplaneConfig;
 import com.janrain.backplane.dao.DaoException;
+import com.janrain.backplane.server1.ChannelMessagesLoop;
 import com.janrain.backplane.server1.dao.BP1DAOs;
 import com.janrain.backplane.server1.model.Backplane1Message;
 import com.janrain.backplane.server1.model.BusConfig1;
@@ -29,6 +31,7 @@ import com.janrain.backplane.server1.model.BusConfig1Fields;
 import com.janrain.backplane.server1.model.BusUser;
 import com.janrain.backplane.server1.model.BusUserFields;
 import com.janrain.commons.supersimpledb.SimpleDBException;
+import com.janrain.servlet.InvalidRequestException;
 import com.janrain.util.RandomUtils;
 import com.janrain.util.ServletUtil;
 import com.janrain.utils.AnalyticsLogger;
@@ -114,7 +117,8 @@ public class Backplane1Controller {
             @RequestHeader(value = "Referer", required = false) String referer,
             @RequestParam(required = false) String callback,
             @RequestParam(value = "since", required = false) String since,
-            @RequestParam(value = "sticky", defaultValue = "false") String sticky)
+            @RequestParam(value = "sticky", defaultValue = "false") String sticky,
+            @RequestParam(value = "block", defaultValue = "0") String block)
             throws SimpleDBException, AuthException, BackplaneServerException {
 
         logger.debug("request started");
@@ -128,7 +132,7 @@ public class Backplane1Controller {
                 resp = newChannel();
                 aniLogNewChannel(request, referer, version, bus, resp.substring(1, resp.length()-1));
             } else {
-                messages = getChannelMessages(bus, channel, since, sticky);
+                messages = getChannelMessages(bus, channel, since, sticky, getBlockSeconds(block));
                 resp = messagesToFrames(messages, version);
                 aniLogPollMessages(request, referer, version, bus, channel, messages);
             }
@@ -173,12 +177,16 @@ public class Backplane1Controller {
             String channelId = "https://" + request.getServerName() + "/" + version + "/bus/" + bus + "/channel/" + channel;
             String clientId = user.id();
 
+            List<Backplane1Message> toStore = new ArrayList<Backplane1Message>();
             for(Map<String,Object> messageData : messages) {
-                Backplane1Message message = new Backplane1Message(bus, channel,
+                toStore.add(new Backplane1Message(bus, channel,
                         busConfig.retentionTimeSeconds(),
                         busConfig.retentionTimeStickySeconds(),
-                        messageData);
-                BP1DAOs.messageDao().store(message);
+                        messageData));
+            }
+            // all or nothing: the whole post is rejected if the message processor queue is full
+            BP1DAOs.messageDao().store(JavaConversions.asScalaBuffer(toStore));
+            for (Backplane1Message message : toStore) {
                 aniLogNewMessage(version, bus, channelId, clientId);
             }
 
@@ -202,6 +210,30 @@ public class Backplane1Controller {
         }};
     }
 
+    /**
+     * Handle client input errors
+     */
+    @ExceptionHandler
+    @ResponseBody
+    public Map<String, String> handle(final InvalidRequestException ire, HttpServletResponse response) {
+        logger.debug("Invalid backplane request: " + ire.getMessage());
+        response.setStatus(ire.getHttpResponseCode());
+        return new HashMap<String,String>() {{
+            put(ERR_MSG_FIELD, ire.getMessage());
+        }};
+    }
+
+    @ExceptionHandler
+    @ResponseBody
+    public Map<String, String> handle(final QueueFullException qfe, HttpServletResponse response) {
+        logger.warn("Message post rejected: " + qfe.getMessage());
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", Integer.toString(qfe.retryAfterSeconds()));
+        return new HashMap<String,String>() {{
+            put(ERR_MSG_FIELD, qfe.getMessage());
+        }};
+    }
+
     @ExceptionHandler
     @ResponseBody
     public Map<String, String> handle(final BackplaneServerException bse, HttpServletResponse response) {
@@ -233,6 +265,8 @@ public class Backplane1Controller {
     private static final String NEW_CHANNEL_LAST_PATH = "new";
     private static final String ERR_MSG_FIELD = "ERR_MSG";
     private static final int CHANNEL_NAME_LENGTH = 32;
+    private static final int MAX_BLOCK_SECONDS = 25;
+    private static final long CHANNEL_POLL_SLEEP_MILLIS = 3000;
 
     private final com.yammer.metrics.core.Timer getBusMessagesTime =
             Metrics.newTimer(new MetricName("v1", this.getClass().getName().replace(".","_"), "get_bus_messages_time"), TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
@@ -308,16 +342,36 @@ public class Backplane1Controller {
     	return newChannel;
     }
 
-    private List<Backplane1Message> getChannelMessages(final String bus, final String channel, final String since, final String sticky) throws SimpleDBException, BackplaneServerException {
+    private List<Backplane1Message> getChannelMessages(final String bus, final String channel, final String since, final String sticky, int blockSeconds) throws SimpleDBException, BackplaneServerException {
 
-        final TimerContext context = getChannelMessagesTime.time();
+        // only time the event if it is not blocking
+        final TimerContext context = blockSeconds == 0 ? getChannelMessagesTime.time() : null;
 
         try {
-            return JavaConversions.seqAsJavaList( BP1DAOs.messageDao().retrieveMessagesByChannel(channel, since, sticky) );
+            if (blockSeconds == 0) {
+                return JavaConversions.seqAsJavaList( BP1DAOs.messageDao().retrieveMessagesByChannel(channel, since, sticky) );
+            } else {
+                return JavaConversions.seqAsJavaList( ChannelMessagesLoop.scalaObject().apply(channel, since, sticky,
+                        CHANNEL_POLL_SLEEP_MILLIS, new Date(System.currentTimeMillis() + blockSeconds * 1000L)) );
+            }
         } catch (Exception e) {
             throw new BackplaneServerException(e.getMessage(), e);
         } finally {
-            context.stop();
+            if (context != null) {
+                context.stop();
+            }
+        }
+    }
+
+    private int getBlockSeconds(String block) {
+        try {
+            int blockSeconds = Integer.valueOf(block);
+            if (blockSeconds < 0 || blockSeconds > MAX_BLOCK_SECONDS) {
+                throw new InvalidRequestException("Invalid value for block parameter (" + block + "), must be between 0 and " + MAX_BLOCK_SECONDS);
+            }
+            return blockSeconds;
+        } catch (NumberFormatException e) {
+            throw new InvalidRequestException("Invalid value for block parameter (" + block + "): " + e.getMessage());
         }
     }
 
@@ -19,9 +19,11 @@ package com.janrain.backplane2.server;
 import com.janrain.backplane.common.AuthException;
 import com.janrain.backplane.common.BackplaneServerException;
 import com.janrain.backplane.common.DateTimeUtils;
+import com.janrain.backplane.common.QueueFullException;
 import com.janrain.backplane.config.BackplaneConfig;
 import com.janrain.backplane.dao.DaoException;
 import com.janrain.backplane.server2.MessageResponse;
+import com.janrain.backplane.server2.MessageStream;
 import com.janrain.backplane.server2.dao.BP2DAOs;
 import com.janrain.backplane.server2.model.*;
 import com.janrain.backplane.server2.model.Channel;
@@ -40,6 +42,7 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.HttpRequestMethodNotSupportedException;
 import org.springframework.web.bind.annotation.*;
@@ -54,7 +57,9 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.UnsupportedEncodingException;
 import java.util.*;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.janrain.oauth2.OAuth2.*;
 import static javax.servlet.http.HttpServletResponse.SC_UNAUTHORIZED;
@@ -306,9 +311,20 @@ public class Backplane2Controller {
             }
 
             // val (framesResult, messages) = ...
-            Tuple2<Map<String,Object>,scala.collection.immutable.List<Backplane2Message>> framesResultAndMessages = MessageResponse.scalaObject().apply(
+            Tuple2<Map<String,Object>,scala.collection.immutable.List<Backplane2Message>> framesResultAndMessages;
+            if ( ! "0".equals(block) && BackplaneConfig.isAsyncMessagesEnabled() && isSuspendable(request)) {
+                Option<Tuple2<Map<String,Object>,scala.collection.immutable.List<Backplane2Message>>> asyncResult = MessageResponse.scalaObject().async(
+                        request, request.getServerName(), token.get().grantType().isPrivileged(),
+                        token.get().scope(), messageRequest.getSince(), MESSAGES_POLL_SLEEP_MILLIS, messageRequest.getReturnBefore());
+                if ( ! asyncResult.isDefined()) {
+                    return null; // suspended, the response is written when the request is redispatched
+                }
+                framesResultAndMessages = asyncResult.get();
+            } else {
+                framesResultAndMessages = MessageResponse.scalaObject().apply(
                     request.getServerName(), token.get().grantType().isPrivileged(),
                     token.get().scope(), messageRequest.getSince(), MESSAGES_POLL_SLEEP_MILLIS, messageRequest.getReturnBefore());
+            }
             aniLogPollMessages(request, referer, JavaConversions.asJavaList(framesResultAndMessages._2()));
             return framesResultAndMessages._1();
 
@@ -325,6 +341,58 @@ public class Backplane2Controller {
         }
     }
 
+    /**
+     * Server-Sent Events variant of /v2/messages: the token is validated once,
+     * then messages are pushed as events for as long as the connection stays open (bounded).
+     *
+     * @param since        optional, overridden by the Last-Event-ID header sent by reconnecting clients
+     */
+    @RequestMapping(value = "/messages/stream", method = { RequestMethod.GET})
+    public @ResponseBody Map<String,Object> messagesStream(final HttpServletRequest request, HttpServletResponse response,
+                                                           @RequestParam(value = "since", required = false) String since,
+                                                           @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId)
+            throws SimpleDBException, BackplaneServerException {
+
+        ServletUtil.checkSecure(request);
+
+        try {
+            MessageRequest messageRequest = new MessageRequest(null, StringUtils.isNotBlank(lastEventId) ? lastEventId : since, "0");
+
+            Option<Token> token = Token.fromRequest(request);
+            if ( ! token.isDefined()) {
+                throw new TokenException("invalid token", HttpServletResponse.SC_FORBIDDEN);
+            }
+            if (token.get().grantType().isRefresh()) {
+                return returnMessage(OAuth2.OAUTH2_TOKEN_INVALID_REQUEST, "Invalid token type: " + token.get().grantType(),
+                        HttpServletResponse.SC_FORBIDDEN, response);
+            }
+
+            // each open stream holds a container thread
+            if ( ! messageStreams.tryAcquire()) {
+                v2StreamsRejected.mark();
+                response.setHeader("Retry-After", Long.toString(MESSAGES_STREAM_KEEPALIVE_MILLIS / 1000));
+                return returnMessage(OAuth2.OAUTH2_TOKEN_INVALID_REQUEST, "Too many open message streams, retry later or poll /v2/messages",
+                        HttpServletResponse.SC_SERVICE_UNAVAILABLE, response);
+            }
+            v2StreamsCounter.inc();
+            try {
+                MessageStream.scalaObject().apply(response, request.getServerName(), token.get(), messageRequest.getSince(),
+                        MESSAGES_POLL_SLEEP_MILLIS, MESSAGES_STREAM_KEEPALIVE_MILLIS, MESSAGES_STREAM_MAX_MILLIS);
+            } finally {
+                v2StreamsCounter.dec();
+                messageStreams.release();
+            }
+            return null;
+
+        } catch (TokenException te) {
+            return handleTokenException(te, response);
+        } catch (InvalidRequestException ire) {
+            throw ire;
+        } catch (Exception e) {
+            throw new BackplaneServerException("Error processing messages stream request: " + e.getMessage(), e);
+        }
+    }
+
 /*
     public Map<String, Object> asResponseFields(String serverName, boolean privileged) throws BackplaneServerException {
         List<Map<String,Object>> frames = new ArrayList<Map<String, Object>>();
@@ -430,6 +498,8 @@ public class Backplane2Controller {
             return handleTokenException(te, response);
         } catch (InvalidRequestException ire) {
             throw ire;
+        } catch (QueueFullException qfe) {
+            throw qfe;
         } catch (Exception e) {
             throw new BackplaneServerException("Error processing post request: " + e.getMessage(), e);
         } finally {
@@ -491,6 +561,20 @@ public class Backplane2Controller {
         }};
     }
 
+    /**
+     * Handle message posts rejected while the message processor queue is full
+     */
+    @ExceptionHandler
+    @ResponseBody
+    public Map<String, Object> handleQueueFull(final QueueFullException e, HttpServletResponse response) {
+        logger.warn("Message post rejected: " + e.getMessage());
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", Integer.toString(e.retryAfterSeconds()));
+        return new HashMap<String,Object>() {{
+            put(ERR_MSG_FIELD, e.getMessage());
+        }};
+    }
+
     /**
      * Handle invalid HTTP request method exceptions
      */
@@ -561,6 +645,15 @@ public class Backplane2Controller {
     public static final String AUTHZ_DECISION_KEY = "auth_key";
 
     private static final int MESSAGES_POLL_SLEEP_MILLIS = 3000;
+    private static final long MESSAGES_STREAM_KEEPALIVE_MILLIS = 15000;
+    private static final long MESSAGES_STREAM_MAX_MILLIS = 5 * 60 * 1000;
+    /** max message streams open at once on this node, further stream requests are rejected with 503 */
+    private static final int MESSAGES_STREAM_MAX_OPEN = 50;
+
+    private final Semaphore messageStreams = new Semaphore(MESSAGES_STREAM_MAX_OPEN);
+
+    /** unsupported async requests are logged once, not on every messages request */
+    private final AtomicBoolean asyncUnsupportedLogged = new AtomicBoolean(false);
 
     @Inject
     private AnalyticsLogger anilogger;
@@ -601,6 +694,21 @@ public class Backplane2Controller {
         }
     }
 
+    /**
+     * @return true if the request can be suspended (Jetty continuations or servlet 3 async support is available)
+     */
+    private boolean isSuspendable(HttpServletRequest request) {
+        try {
+            ContinuationSupport.getContinuation(request);
+            return true;
+        } catch (IllegalStateException e) {
+            if (asyncUnsupportedLogged.compareAndSet(false, true)) {
+                logger.warn("Asynchronous messages requests not supported by the servlet container: " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
     private String paddedResponse(String callback, String s) {
         if (StringUtils.isBlank(callback)) {
             throw new InvalidRequestException("Callback cannot be blank.");
@@ -971,5 +1079,9 @@ public class Backplane2Controller {
             com.yammer.metrics.Metrics.newTimer(new MetricName("v2", this.getClass().getName().replace(".","_"), "v2_get_reg_tokens_time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
     private final com.yammer.metrics.core.Timer getPrivilegedTokenTimer =
             com.yammer.metrics.Metrics.newTimer(new MetricName("v2", this.getClass().getName().replace(".","_"), "v2_get_privileged_tokens_time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+    private final com.yammer.metrics.core.Counter v2StreamsCounter =
+            com.yammer.metrics.Metrics.newCounter(new MetricName("v2", this.getClass().getName().replace(".","_"), "v2_open_message_streams"));
+    private final com.yammer.metrics.core.Meter v2StreamsRejected =
+            com.yammer.metrics.Metrics.newMeter(new MetricName("v2", this.getClass().getName().replace(".","_"), "v2_rejected_message_streams"), "streams", TimeUnit.SECONDS);
 
 }
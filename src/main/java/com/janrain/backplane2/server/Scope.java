@@ -47,25 +47,26 @@ public class Scope {
      */
     public Scope(String scopeString) throws TokenException {
         this.scopes = parseScopeString(scopeString);
+        this.matcher = new Matcher(scopes);
     }
 
     public Scope(final Backplane2MessageFields.EnumVal scopeField, final String value) {
         this.scopes = new LinkedHashMap<Backplane2MessageFields.EnumVal, LinkedHashSet<String>>() {{
             put(scopeField, new LinkedHashSet<String>() {{ add(value); }});
         }};
+        this.matcher = new Matcher(scopes);
     }
 
     public Scope(Map<Backplane2MessageFields.EnumVal, LinkedHashSet<String>> scopeMap) {
-        this.scopes = new LinkedHashMap<Backplane2MessageFields.EnumVal, LinkedHashSet<String>>(scopeMap);
+        this.scopes = copy(scopeMap);
+        this.matcher = new Matcher(scopes);
     }
 
     /**
      * @return a copy of this scope's internal map of scope key-values
      */
     public Map<Backplane2MessageFields.EnumVal, LinkedHashSet<String>> getScopeMap() {
-        Map<Backplane2MessageFields.EnumVal, LinkedHashSet<String>> mapCopy = new LinkedHashMap<Backplane2MessageFields.EnumVal, LinkedHashSet<String>>();
-        mapCopy.putAll(scopes);
-        return mapCopy;
+        return copy(scopes);
     }
 
     public Set<String> getScopeFieldValues(Backplane2MessageFields.EnumVal field) {
@@ -98,11 +99,7 @@ public class Scope {
 
 
     public boolean isMessageInScope(@NotNull Backplane2Message message) {
-        for(Backplane2MessageFields.EnumVal scopeField : scopes.keySet()) {
-            LinkedHashSet<String> scopeValues = scopes.get(scopeField);
-            if (scopeValues == null || ! scopeValues.contains((String)message.get(scopeField).getOrElse(null))) return false;
-        }
-        return true;
+        return matcher.matches(message);
     }
 
     public boolean containsScope(Scope testScope) {
@@ -288,7 +285,55 @@ public class Scope {
     private static final String SEPARATOR = " ";
     private static final String DELIMITER = ":";
 
-    private Map<Backplane2MessageFields.EnumVal,LinkedHashSet<String>> scopes;
+    private final Map<Backplane2MessageFields.EnumVal,LinkedHashSet<String>> scopes;
+    private final Matcher matcher;
+
+    /**
+     * Compiled form of the scope used for matching messages:
+     * scope fields resolved to name/values slots, single value sets resolved to their value.
+     */
+    private static final class Matcher {
+
+        @SuppressWarnings("unchecked")
+        private Matcher(Map<Backplane2MessageFields.EnumVal,LinkedHashSet<String>> scopes) {
+            fieldNames = new String[scopes.size()];
+            singleValues = new String[scopes.size()];
+            valueSets = new Set[scopes.size()];
+            int slot = 0;
+            for (Map.Entry<Backplane2MessageFields.EnumVal, LinkedHashSet<String>> entry : scopes.entrySet()) {
+                fieldNames[slot] = entry.getKey().name();
+                Set<String> values = entry.getValue();
+                if (values != null && values.size() == 1) {
+                    singleValues[slot] = values.iterator().next();
+                } else {
+                    valueSets[slot] = values == null ? Collections.<String>emptySet() : new HashSet<String>(values);
+                }
+                slot++;
+            }
+        }
+
+        private boolean matches(Backplane2Message message) {
+            for (int slot = 0; slot < fieldNames.length; slot++) {
+                Option<String> value = message.get(fieldNames[slot]);
+                if (value.isEmpty()) return false;
+                if (singleValues[slot] != null ? ! singleValues[slot].equals(value.get()) : ! valueSets[slot].contains(value.get())) return false;
+            }
+            return true;
+        }
+
+        private final String[] fieldNames;
+        private final String[] singleValues;
+        private final Set<String>[] valueSets;
+    }
+
+    /** @return a copy of the scope map, including the value sets */
+    private static Map<Backplane2MessageFields.EnumVal, LinkedHashSet<String>> copy(Map<Backplane2MessageFields.EnumVal, LinkedHashSet<String>> scopeMap) {
+        Map<Backplane2MessageFields.EnumVal, LinkedHashSet<String>> mapCopy = new LinkedHashMap<Backplane2MessageFields.EnumVal, LinkedHashSet<String>>();
+        for (Map.Entry<Backplane2MessageFields.EnumVal, LinkedHashSet<String>> entry : scopeMap.entrySet()) {
+            mapCopy.put(entry.getKey(), entry.getValue() == null ? null : new LinkedHashSet<String>(entry.getValue()));
+        }
+        return mapCopy;
+    }
 
     private static Map<Backplane2MessageFields.EnumVal, LinkedHashSet<String>> parseScopeString(String scopeString) throws TokenException {
 
@@ -1,19 +1,27 @@
 package com.janrain.backplane2.server.dao;
 
-import com.janrain.commons.supersimpledb.SimpleDBException;
-import com.janrain.commons.supersimpledb.message.Message;
+import com.janrain.backplane.common.model.BackplaneMessage;
+import com.janrain.backplane.dao.redis.MessageFeedListener;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import scala.collection.JavaConversions;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Cache for (Backplane) Messages
+ * Node-local tail cache for the most recently committed (Backplane) Messages.
+ *
+ * Holds all messages committed after the window's start ID, ordered by ID, up to maxCacheSizeBytes;
+ * the oldest messages are evicted first, moving the window start forward.
+ * Updated (single writer) from the message processor's committed batches feed, lookups don't lock.
  *
  * @author Johnny Bufu
  */
-public class MessageCache<T extends Message> {
+public class MessageCache<T extends BackplaneMessage<?>> implements MessageFeedListener<T> {
 
     // - PUBLIC
 
@@ -24,113 +32,164 @@ public class MessageCache<T extends Message> {
         this.maxCacheSizeBytes = maxCacheSizeBytes;
     }
 
-    public synchronized long getMaxCacheSizeBytes() {
+    public long getMaxCacheSizeBytes() {
         return maxCacheSizeBytes;
     }
 
     public synchronized void setMaxCacheSizeBytes(long maxCacheSizeBytes) {
         this.maxCacheSizeBytes = maxCacheSizeBytes;
+        evict();
     }
 
-    public synchronized T get(String messageId) {
+    public T get(String messageId) {
         return cache.get(messageId);
     }
 
-    public synchronized T getFirstMessage() {
-        //noinspection LoopStatementThatDoesntLoop
-        for (T t : cache.values()) {
-            return t;
-        }
-        return null;
+    public T getFirstMessage() {
+        Map.Entry<String, T> first = cache.firstEntry();
+        return first == null ? null : first.getValue();
     }
 
-    public synchronized T getLastMessage() {
-        T last = null;
-        for (T t : cache.values()) {
-            last = t;
-        }
-        return last;
+    public T getLastMessage() {
+        Map.Entry<String, T> last = cache.lastEntry();
+        return last == null ? null : last.getValue();
     }
 
     /**
-     * Adds new Messages to the Cache.
-     *
-     * All new Messages MUST compare greater than any existing message in the cache, otherwise the operation will fail.
-     *
-     * @param messages
-     * @throws SimpleDBException if any of the provided messages compares smaller than any existing message in the cache.
+     * Adds a committed batch of messages to the cache.
+     * If the batch doesn't follow the last cached batch, the cache is restarted at previousLastId.
      */
-    public synchronized void add(List<T> messages) throws SimpleDBException {
+    @Override
+    public synchronized void committed(String previousLastId, String lastId, java.util.List<T> messages) {
+        if (maxCacheSizeBytes <= 0) return;
+
+        Window current = window;
+        if (current == null || ! current.lastId.equals(previousLastId)) {
+            clear();
+            current = new Window(++generation, previousLastId, previousLastId);
+            logger.info("Message cache window restarted after: " + previousLastId);
+        }
 
-        lastUpdated.set(System.currentTimeMillis());
+        for (T message : messages) {
+            if (cache.put(message.id(), message) == null) {
+                size.addAndGet(sizeBytes(message));
+            }
+        }
+        window = new Window(current.generation, current.startId, lastId);
+        evict();
+    }
 
-        if (messages == null || messages.isEmpty()) return;
+    @Override
+    public synchronized void missed() {
+        clear();
+    }
 
-        Collections.sort(messages);
+    public synchronized void clear() {
+        window = null;
+        cache.clear();
+        size.set(0);
+    }
 
-        T first = messages.get(0);
-        T lastCached = getLastMessage();
-        if (lastCached != null && first.compareTo(lastCached) < 0) {
-            throw new SimpleDBException("Cache update rejected, newer messages exists: " + lastCached.getIdValue());
+    /**
+     * @return the cached messages committed after the provided message ID (as far as its timestamp), up to the tail's last ID,
+     *         or null if messages after sinceId are not all in the cache
+     */
+    public @Nullable Tail<T> getMessagesSince(String sinceId) {
+        Window before = window;
+        long sinceTime = BackplaneMessage.timeFromId(sinceId);
+        if (before == null || sinceTime < before.startTime || sinceTime > before.lastTime) {
+            return null;
         }
 
-        for(T message : messages) {
-            cache.put(message.getIdValue(), message);
-            size.addAndGet(message.sizeBytes());
+        List<T> messages;
+        if (sinceTime == before.lastTime) {
+            messages = new ArrayList<T>();
+        } else if (sinceTime == 0) {
+            messages = new ArrayList<T>(cache.headMap(before.lastId, true).values());
+        } else {
+            messages = new ArrayList<T>(cache.subMap(BackplaneMessage.afterAnyIdAt(sinceId), false, before.lastId, true).values());
         }
-        logger.info("Added " + messages.size() + " " + first.getClass().getSimpleName() + " items to cache");
-    }
 
-    public synchronized @NotNull List<T> getMessagesSince(String sinceIso8601timestamp, long acceptableStaleMillis) {
-        return System.currentTimeMillis() - lastUpdated.get() < acceptableStaleMillis ? getMessagesSince(sinceIso8601timestamp) :
-               new ArrayList<T>();
+        // valid only if nothing was evicted past sinceId while reading
+        Window after = window;
+        if (after == null || after.generation != before.generation || sinceTime < after.startTime) {
+            return null;
+        }
+        return new Tail<T>(messages, before.lastId);
     }
 
     /**
-     * If the provided sinceIso8601timestamp is within the timestamps/IDs of the currently cached Messages,
-     * all messages on or after the provided sinceIso8601timestamp are returned.
-     * Otherwise an empty list is returned.
+     * Messages committed after a given ID, up to the last ID known to the cache at the time of the lookup.
      */
-    public synchronized @NotNull List<T> getMessagesSince(String sinceIso8601timestamp) {
-        List<T> result = new ArrayList<T>();
-        T first = getFirstMessage();
-        if (first != null && first.getIdValue().compareTo(sinceIso8601timestamp) <= 0) {
-            for(Map.Entry<String,T> entry : cache.entrySet()) {
-                if (entry.getValue().getIdValue().compareTo(sinceIso8601timestamp) > 0) {
-                    result.add(entry.getValue());
-                }
-            }
+    public static class Tail<T> {
+
+        public Tail(@NotNull List<T> messages, String lastId) {
+            this.messages = messages;
+            this.lastId = lastId;
         }
-        return result;
-    }
 
-    public long getLastUpdated() {
-        return lastUpdated.get();
+        public @NotNull List<T> getMessages() {
+            return messages;
+        }
+
+        public String getLastId() {
+            return lastId;
+        }
+
+        private final List<T> messages;
+        private final String lastId;
     }
 
     // - PRIVATE
 
     private static final Logger logger = Logger.getLogger(MessageCache.class);
 
-    private final LinkedHashMap<String,T> cache = new LinkedHashMap<String, T>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
-            int removed = 0;
-            Iterator<Map.Entry<String, T>> entries = entrySet().iterator();
-            while ( size.get() > maxCacheSizeBytes && entries.hasNext()) {
-                Map.Entry<String, T> next = entries.next();
-                entries.remove();
-                size.addAndGet( -1 * next.getValue().sizeBytes());
-                removed++;
-            }
-            if (removed > 0) {
-                logger.info("Removed " + removed + " " + eldest.getClass().getSimpleName() + " items from cache, new size is: " + size() + " items / " + size.get() + " bytes");
-            }
-            return false;
+    /** all messages committed after startId and up to lastId are cached */
+    private static class Window {
+
+        private Window(long generation, String startId, String lastId) {
+            this.generation = generation;
+            this.startId = startId;
+            this.lastId = lastId;
+            this.startTime = BackplaneMessage.timeFromId(startId);
+            this.lastTime = BackplaneMessage.timeFromId(lastId);
         }
-    };
+
+        private final long generation;
+        private final String startId;
+        private final String lastId;
+        private final long startTime;
+        private final long lastTime;
+    }
+
+    private final ConcurrentNavigableMap<String,T> cache = new ConcurrentSkipListMap<String, T>();
 
     private final AtomicLong size = new AtomicLong(0);
-    private final AtomicLong lastUpdated = new AtomicLong(0);
-    private long maxCacheSizeBytes;
+    private volatile long maxCacheSizeBytes;
+    private volatile Window window;
+    private long generation = 0;
+
+    private void evict() {
+        int removed = 0;
+        while (size.get() > maxCacheSizeBytes && ! cache.isEmpty()) {
+            Map.Entry<String, T> evicted = cache.pollFirstEntry();
+            size.addAndGet(-1 * sizeBytes(evicted.getValue()));
+            Window current = window;
+            if (current != null) {
+                window = new Window(current.generation, evicted.getKey(), current.lastId);
+            }
+            removed++;
+        }
+        if (removed > 0) {
+            logger.debug("Removed " + removed + " items from message cache, new size is: " + cache.size() + " items / " + size.get() + " bytes");
+        }
+    }
+
+    private static long sizeBytes(BackplaneMessage<?> message) {
+        long bytes = 0;
+        for (Map.Entry<String, String> entry : JavaConversions.mapAsJavaMap(message).entrySet()) {
+            bytes += 2 * (entry.getKey().length() + entry.getValue().length());
+        }
+        return bytes;
+    }
 }
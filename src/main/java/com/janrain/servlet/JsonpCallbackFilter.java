@@ -18,6 +18,7 @@ package com.janrain.servlet;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
+import org.eclipse.jetty.continuation.Continuation;
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -55,6 +56,12 @@ public class JsonpCallbackFilter implements Filter {
 
             chain.doFilter(request, wrapper);
 
+            Continuation continuation = (Continuation) request.getAttribute(Continuation.ATTRIBUTE);
+            if (continuation != null && continuation.isSuspended()) {
+                // the wrapped response will be written when the suspended request is redispatched
+                return;
+            }
+
             stream.write((callbackName + "(").getBytes());
             stream.write(wrapper.getData());
             stream.write(");".getBytes());
@@ -0,0 +1,75 @@
+package com.janrain.backplane.common
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+import java.util.concurrent.TimeUnit
+import java.util.zip.{GZIPInputStream, GZIPOutputStream}
+import org.apache.commons.codec.binary.Base64
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.MetricName
+
+/**
+ * Compression for (large) message payloads stored in redis.
+ *
+ * Compressed values are marked with a prefix that is never the start of a JSON value,
+ * so compressed and plain values can be stored side by side and decompressed lazily.
+ */
+object PayloadCompression {
+
+  final val COMPRESSED_MARKER = "gz:"
+
+  def isCompressed(value: String): Boolean = value != null && value.startsWith(COMPRESSED_MARKER)
+
+  /**
+   * @return the compressed value if it is at least minBytes long and compressing it saves space, the value otherwise
+   */
+  def compress(value: String, minBytes: Long): String =
+    if (minBytes <= 0 || value == null || value.length < minBytes || isCompressed(value)) value
+    else {
+      val context = compressionTime.time()
+      val compressed = try {
+        val bytes = new ByteArrayOutputStream
+        val gzip = new GZIPOutputStream(bytes)
+        gzip.write(value.getBytes(UTF8))
+        gzip.close()
+        COMPRESSED_MARKER + new String(Base64.encodeBase64(bytes.toByteArray), ASCII)
+      } finally {
+        context.stop()
+      }
+      compressionRatio.update(compressed.length * 100 / value.length)
+      if (compressed.length < value.length) compressed else value
+    }
+
+  /** @return the decompressed value if it is compressed, the value otherwise */
+  def decompress(value: String): String =
+    if (! isCompressed(value)) value
+    else {
+      val context = decompressionTime.time()
+      try {
+        val gzip = new GZIPInputStream(new ByteArrayInputStream(Base64.decodeBase64(value.substring(COMPRESSED_MARKER.length).getBytes(ASCII))))
+        try {
+          val bytes = new ByteArrayOutputStream
+          val buffer = new Array[Byte](4096)
+          Iterator.continually(gzip.read(buffer)).takeWhile(_ != -1).foreach(bytes.write(buffer, 0, _))
+          new String(bytes.toByteArray, UTF8)
+        } finally {
+          gzip.close()
+        }
+      } finally {
+        context.stop()
+      }
+    }
+
+  // - PRIVATE
+
+  private final val UTF8 = "UTF-8"
+  private final val ASCII = "US-ASCII"
+
+  private val compressionRatio = Metrics.newHistogram(
+    new MetricName("v2", PayloadCompression.getClass.getName.replace(".", "_"), "compressed_size_percent"))
+
+  private val compressionTime = Metrics.newTimer(
+    new MetricName("v2", PayloadCompression.getClass.getName.replace(".", "_"), "compression_time"), TimeUnit.MICROSECONDS, TimeUnit.SECONDS)
+
+  private val decompressionTime = Metrics.newTimer(
+    new MetricName("v2", PayloadCompression.getClass.getName.replace(".", "_"), "decompression_time"), TimeUnit.MICROSECONDS, TimeUnit.SECONDS)
+}
@@ -0,0 +1,9 @@
+package com.janrain.backplane.common
+
+import org.springframework.http.HttpStatus
+
+/**
+ * Posted messages are not accepted while the message processor queue is deeper than the configured maximum.
+ */
+class QueueFullException(message: String, val retryAfterSeconds: Int)
+  extends BackplaneServerException(message, HttpStatus.SERVICE_UNAVAILABLE)
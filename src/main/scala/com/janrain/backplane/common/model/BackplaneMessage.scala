@@ -3,6 +3,8 @@ package com.janrain.backplane.common.model
 import java.util.Date
 import com.janrain.backplane.common.MessageException
 import com.janrain.util.{Loggable, Utils, RandomUtils}
+import com.janrain.backplane.config.SystemProperties
+import org.apache.commons.lang.StringUtils
 
 /**
  * Base class for Backplane[1|2]Message
@@ -25,30 +27,171 @@ object BackplaneMessage extends Loggable {
 
   def generateMessageId: String = generateMessageId(new Date)
 
+  /** @return ISO8601 timestamp prefixed message ID */
   def generateMessageId(date: Date): String =
-    Utils.ISO8601.print(new Date().getTime) + MESSAGE_ID_TIMESTAMP_SEP + RandomUtils.randomString(MESSAGE_ID_RANDOM_LENGTH)
+    Utils.ISO8601.print(date.getTime) + MESSAGE_ID_TIMESTAMP_SEP + RandomUtils.randomString(MESSAGE_ID_RANDOM_LENGTH)
+
+  /**
+   * Compact message IDs are 64 bit numbers: 42 bits of milliseconds since 1970-01-01, 10 bits of (this) node,
+   * 12 bits of a per node sequence, encoded as 13 base32hex characters.
+   * IDs are unique only if the nodes are, see the MESSAGE_ID_NODE system property.
+   * They sort as the numbers they encode, and after any ISO8601 timestamp prefixed ID.
+   *
+   * @return compact message ID for the provided time
+   */
+  def generateCompactId(time: Long): String =
+    encodeCompactId((time << COMPACT_ID_TIME_SHIFT) | (node << COMPACT_ID_SEQUENCE_BITS) | (sequence.getAndIncrement & COMPACT_ID_SEQUENCE_MASK))
 
   def legacyIdLength: Int = 25 + MESSAGE_ID_LEGACY_RANDOM_LENGTH // ISO8601 length + "-" + random_length
 
-  /** @return milliseconds since 1970-01-01, or 0 if the provided parameter is not a valid ISO8601 date prefixed string */
-  final def timeFromId(timestampPrefixedId: String): Long = {
-    try {
-      dateFromId(timestampPrefixedId).map(_.getTime).getOrElse(0)
-    } catch {
-      case e: Exception =>
-        logDebug("invalid message ID: " + timestampPrefixedId)
-        0
+  /** @return milliseconds since 1970-01-01, or 0 if the provided parameter is not a valid compact or ISO8601 date prefixed ID */
+  final def timeFromId(messageId: String): Long = {
+    val time = parseTime(messageId)
+    if (time < 0) {
+      logDebug("invalid message ID: " + messageId)
+      0
+    } else time
+  }
+
+  /** throws if the provided parameter is not a valid compact or ISO8601 date prefixed ID */
+  final def dateFromId(messageId: String): Option[Date] = {
+    val time = parseTime(messageId)
+    if (time < 0) throw new MessageException("error extracting timestamp from id: " + messageId)
+    else Some(new Date(time))
+  }
+
+  def isCompactId(messageId: String): Boolean = {
+    if (messageId == null || messageId.length != COMPACT_ID_LENGTH) false
+    else {
+      var valid = base32HexDigit(messageId.charAt(0)) <= 15 // the top bit of the encoded 65 bits is always 0
+      var i = 0
+      while (valid && i < COMPACT_ID_LENGTH) {
+        valid = base32HexDigit(messageId.charAt(i)) >= 0
+        i += 1
+      }
+      valid
     }
   }
 
-  /** throws if the provided parameter is not a valid ISO8601 date prefixed string */
-  final def dateFromId(timestampPrefixedId: String): Option[Date] =
-    try {
-      Some(Utils.ISO8601.parseDateTime(timestampPrefixedId.substring(0, timestampPrefixedId.indexOf("Z") + 1)).toDate)
-    } catch {
-      case e: Throwable => {
-        throw new MessageException("error extracting timestamp from id: " + e.getMessage)
+  /**
+   * @return a key that sorts after any ID (compact or ISO8601 prefixed) with the same time as the provided ID,
+   *         and before any ID with a later time
+   */
+  def afterAnyIdAt(messageId: String): String =
+    if (isCompactId(messageId)) encodeCompactId((timeFromId(messageId) << COMPACT_ID_TIME_SHIFT) | ~(-1L << COMPACT_ID_TIME_SHIFT)) + AFTER_ANY_SUFFIX
+    else messageId.substring(0, math.min(messageId.length, ISO8601_LENGTH)) + AFTER_ANY_SUFFIX
+
+  // - PRIVATE
+
+  private final val COMPACT_ID_LENGTH = 13
+  private final val COMPACT_ID_SEQUENCE_BITS = 12
+  private final val COMPACT_ID_NODE_BITS = 10
+  private final val COMPACT_ID_TIME_SHIFT = COMPACT_ID_SEQUENCE_BITS + COMPACT_ID_NODE_BITS
+  private final val COMPACT_ID_SEQUENCE_MASK = ~(-1L << COMPACT_ID_SEQUENCE_BITS)
+  private final val BASE32HEX = "0123456789abcdefghijklmnopqrstuv"
+
+  private final val ISO8601_LENGTH = 24 // yyyy-MM-ddTHH:mm:ss.SSSZ
+
+  // sorts after the rest of any message ID with the same prefix
+  private final val AFTER_ANY_SUFFIX = "\uffff"
+
+  /**
+   * The configured MESSAGE_ID_NODE, unique per node (JVM) writing to the same redis instance.
+   * Falls back to a JVM (process and host) hash, which may collide with other nodes' IDs.
+   */
+  private lazy val node: Long = {
+    val maxNode = ~(-1L << COMPACT_ID_NODE_BITS)
+    val hashed = java.lang.management.ManagementFactory.getRuntimeMXBean.getName.hashCode & maxNode
+    Option(System.getProperty(SystemProperties.MESSAGE_ID_NODE)).filter(StringUtils.isNotBlank).map(configured =>
+      try {
+        val configuredNode = configured.trim.toLong
+        if (configuredNode < 0 || configuredNode > maxNode) throw new NumberFormatException("out of range: " + configuredNode)
+        configuredNode
+      } catch {
+        case e: NumberFormatException =>
+          logger.error("invalid %s value: %s, must be between 0 and %s; using node %s, message IDs may collide with other nodes'"
+            .format(SystemProperties.MESSAGE_ID_NODE, configured, maxNode, hashed))
+          hashed
+      }).getOrElse {
+        logger.warn("%s not configured, using node %s; message IDs may collide with other nodes'".format(SystemProperties.MESSAGE_ID_NODE, hashed))
+        hashed
       }
+  }
+
+  private val sequence = new java.util.concurrent.atomic.AtomicLong(new java.util.Random().nextInt(1 << COMPACT_ID_SEQUENCE_BITS))
+
+  private def encodeCompactId(value: Long): String = {
+    val chars = new Array[Char](COMPACT_ID_LENGTH)
+    var remaining = value
+    var i = COMPACT_ID_LENGTH - 1
+    while (i >= 0) {
+      chars(i) = BASE32HEX.charAt((remaining & 31).toInt)
+      remaining >>>= 5
+      i -= 1
     }
+    new String(chars)
+  }
 
-}
\ No newline at end of file
+  /** @return the encoded (unsigned) value of a valid compact ID */
+  private def decodeCompactId(messageId: String): Long = {
+    var value = 0L
+    var i = 0
+    while (i < COMPACT_ID_LENGTH) {
+      value = (value << 5) | base32HexDigit(messageId.charAt(i))
+      i += 1
+    }
+    value
+  }
+
+  private def base32HexDigit(c: Char): Int =
+    if (c >= '0' && c <= '9') c - '0'
+    else if (c >= 'a' && c <= 'v') c - 'a' + 10
+    else -1
+
+  /** @return milliseconds since 1970-01-01 from the ID's fixed positions, without allocating; -1 if invalid */
+  private def parseTime(messageId: String): Long =
+    if (messageId == null) -1
+    else if (isCompactId(messageId)) decodeCompactId(messageId) >>> COMPACT_ID_TIME_SHIFT
+    else parseIso8601Time(messageId)
+
+  private def parseIso8601Time(id: String): Long = {
+    if (id.length < ISO8601_LENGTH || id.charAt(4) != '-' || id.charAt(7) != '-' || id.charAt(10) != 'T' ||
+        id.charAt(13) != ':' || id.charAt(16) != ':' || id.charAt(19) != '.' || id.charAt(23) != 'Z') -1
+    else {
+      val year = digits(id, 0, 4)
+      val month = digits(id, 5, 2)
+      val day = digits(id, 8, 2)
+      val hour = digits(id, 11, 2)
+      val minute = digits(id, 14, 2)
+      val second = digits(id, 17, 2)
+      val millis = digits(id, 20, 3)
+      if (year < 1970 || month < 1 || month > 12 || day < 1 || day > 31 ||
+          hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59 || millis < 0) -1
+      else ((epochDay(year, month, day) * 24 + hour) * 60 + minute) * 60000L + second * 1000L + millis
+    }
+  }
+
+  /** @return the decimal value of count digits starting at from, -1 if any of them is not a digit */
+  private def digits(s: String, from: Int, count: Int): Int = {
+    var value = 0
+    var i = from
+    while (i < from + count) {
+      val c = s.charAt(i)
+      if (c < '0' || c > '9') return -1
+      value = value * 10 + (c - '0')
+      i += 1
+    }
+    value
+  }
+
+  /** days since 1970-01-01 of a (proleptic Gregorian) date */
+  private def epochDay(year: Int, month: Int, day: Int): Long = {
+    val y = if (month <= 2) year - 1 else year
+    val era = y / 400
+    val yearOfEra = y - era * 400
+    val dayOfYear = (153 * (if (month > 2) month - 3 else month + 9) + 2) / 5 + day - 1
+    val dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear
+    era * 146097L + dayOfEra - 719468
+  }
+
+}
@@ -126,6 +126,14 @@ trait MessageField {
     }
   }
 
+  def validateInt(fieldValue: Option[String]) {
+    try {
+      fieldValue.foreach(_.toInt)
+    } catch {
+      case e: NumberFormatException => throw new MessageException("invalid int value for " + name + ": " + fieldValue)
+    }
+  }
+
   def validateUrl(fieldValue: Option[String]) {
     try {
       fieldValue.foreach(new URL(_))
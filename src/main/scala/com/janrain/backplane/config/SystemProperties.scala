@@ -37,10 +37,30 @@ object SystemProperties extends InitSystemProps("/log4j.xml") with Loggable {
   final val ANALYTICS_LOGGING = "ANALYTICS_LOGGING"
   load(ANALYTICS_LOGGING, false)
 
+  final val MESSAGE_PROCESSOR_SHARDS = "MESSAGE_PROCESSOR_SHARDS"
+  load(MESSAGE_PROCESSOR_SHARDS, false)
+
+  // unique (0-1023) per node, see BackplaneMessage.generateCompactId(); read by BackplaneMessage without initializing this object
+  final val MESSAGE_ID_NODE = "MESSAGE_ID_NODE"
+  load(MESSAGE_ID_NODE, false)
+
   load(InitSystemProps.AWS_INSTANCE_ID)
   final val INSTANCE_ID = Utils.getRequiredSystemProperty(InitSystemProps.AWS_INSTANCE_ID)
   logger.info("Configured Backplane instance: " + INSTANCE_ID)
 
+  /**
+   * Number of v2 message processor shards (default 1), see MessageProcessorDaoSupport.shard().
+   * Must be the same on all nodes; changing it moves buses between shards, so it should only be changed with empty queues.
+   */
+  lazy val messageProcessorShards: Int = Option(System.getProperty(MESSAGE_PROCESSOR_SHARDS)).filter(StringUtils.isNotBlank).map(shards =>
+    try {
+      math.max(1, shards.trim.toInt)
+    } catch {
+      case e: NumberFormatException =>
+        logger.warn("invalid %s value: %s, using a single message processor shard".format(MESSAGE_PROCESSOR_SHARDS, shards))
+        1
+    }).getOrElse(1)
+
   def machineName: String = try {
     "backplane/" + InetAddress.getLocalHost.getHostName
   } catch {
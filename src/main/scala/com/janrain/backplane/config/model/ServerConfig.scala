@@ -9,10 +9,18 @@ import com.janrain.backplane.common.model.{MessageField, MessageFieldEnum, Messa
 class ServerConfig(data: Map[String,String]) extends Message(ServerConfig.DEFAULT ++ data, ServerConfigFields.values) {
   def idField = ServerConfigFields.ID
   def isDebugMode = get(ServerConfigFields.DEBUG_MODE).getOrElse("false").toBoolean
+  def isEnabled(flag: ServerConfigFields.EnumVal) = get(flag).exists(_ == true.toString)
+  def indexedScopeFields: Set[String] = get(ServerConfigFields.V2_INDEXED_SCOPE_FIELDS)
+    .map(_.split(",").map(_.trim).filter(! _.isEmpty).toSet).getOrElse(Set.empty)
+  def messageProcessorMaxBatch: Int = get(ServerConfigFields.MESSAGE_PROCESSOR_MAX_BATCH).map(_.toInt).getOrElse(ServerConfig.MESSAGE_PROCESSOR_MAX_BATCH_DEFAULT)
+  def messageQueueMaxDepth: Long = get(ServerConfigFields.MESSAGE_QUEUE_MAX_DEPTH).map(_.toLong).getOrElse(0L)
+  def payloadCompressionMinBytes: Long = get(ServerConfigFields.PAYLOAD_COMPRESSION_MIN_BYTES).map(_.toLong).getOrElse(0L)
 }
 
 object ServerConfig {
 
+  final val MESSAGE_PROCESSOR_MAX_BATCH_DEFAULT = 100
+
   final val DEFAULT = Map(
     ServerConfigFields.ID.name -> SystemProperties.INSTANCE_ID,
     ServerConfigFields.DEBUG_MODE.name -> false.toString,
@@ -48,4 +56,46 @@ object ServerConfigFields extends MessageFieldEnum {
   // must be exactly "true" to instruct message processor to stop writing old serialization format and old index/redis keys
   val BP1_MP_STOP_WRITING_LEGACY_FORMAT = new ServerConfigField { def name = "bp1_mp_stop_writing_legacy_format" }
 
-}
\ No newline at end of file
+  // must be exactly "true" to suspend blocking /v2/messages requests instead of holding a thread while waiting for messages
+  val V2_MESSAGES_ASYNC = new ServerConfigField { def name = "v2_messages_async"
+    override def required = false
+  }
+
+  // posted messages are rejected (503) while a message processor queue is deeper than this, not set or 0 disables the check
+  val MESSAGE_QUEUE_MAX_DEPTH = new ServerConfigField { def name = "message_queue_max_depth"
+    override def required = false
+    override def validate(fieldValue: Option[String], wholeMessage: Message[_]) {
+      super.validate(fieldValue, wholeMessage)
+      if (fieldValue.isDefined) validateLong(fieldValue)
+    }
+  }
+
+  // must be exactly "true" to commit posted v2 messages directly instead of queueing them for the message processor
+  val V2_MESSAGES_DIRECT_WRITE = new ServerConfigField { def name = "v2_messages_direct_write"
+    override def required = false
+  }
+
+  // message payloads at least this long are stored compressed, not set or 0 disables compression
+  val PAYLOAD_COMPRESSION_MIN_BYTES = new ServerConfigField { def name = "payload_compression_min_bytes"
+    override def required = false
+    override def validate(fieldValue: Option[String], wholeMessage: Message[_]) {
+      super.validate(fieldValue, wholeMessage)
+      if (fieldValue.isDefined) validateLong(fieldValue)
+    }
+  }
+
+  // comma separated names of filter scope fields for which the message processor maintains (secondary) v2 message indexes
+  val V2_INDEXED_SCOPE_FIELDS = new ServerConfigField { def name = "v2_indexed_scope_fields"
+    override def required = false
+  }
+
+  // maximum number of queued messages the message processor commits in one transaction
+  val MESSAGE_PROCESSOR_MAX_BATCH = new ServerConfigField { def name = "message_processor_max_batch"
+    override def required = false
+    override def validate(fieldValue: Option[String], wholeMessage: Message[_]) {
+      super.validate(fieldValue, wholeMessage)
+      if (fieldValue.isDefined) validateInt(fieldValue)
+    }
+  }
+
+}
@@ -0,0 +1,61 @@
+package com.janrain.backplane.dao.redis
+
+import scala.collection.mutable
+
+/**
+ * Redis write commands collected for one message processor batch (or direct write),
+ * applied atomically (all or nothing) by the commit script, see MessageProcessorDaoSupport.commit().
+ *
+ * Keys and values are either strings or byte arrays.
+ */
+class BatchWrites {
+
+  def hmset(key: Any, fields: Iterable[(String, String)]) {
+    add("HMSET" :: key :: fields.toList.flatMap { case (field, value) => List(field, value) })
+  }
+
+  def hset(key: Any, field: Any, value: Any) {
+    add(List("HSET", key, field, value))
+  }
+
+  def hdel(key: Any, field: Any) {
+    add(List("HDEL", key, field))
+  }
+
+  def expire(key: Any, seconds: Int) {
+    add(List("EXPIRE", key, seconds))
+  }
+
+  def setex(key: Any, seconds: Int, value: Any) {
+    add(List("SETEX", key, seconds, value))
+  }
+
+  def zadd(key: Any, score: Double, member: Any) {
+    add(List("ZADD", key, score, member))
+  }
+
+  def zremrangebyscore(key: Any, min: Any, max: Any) {
+    add(List("ZREMRANGEBYSCORE", key, min, max))
+  }
+
+  def sadd(key: Any, member: Any) {
+    add(List("SADD", key, member))
+  }
+
+  def rpush(key: Any, value: Any) {
+    add(List("RPUSH", key, value))
+  }
+
+  def isEmpty: Boolean = commands.isEmpty
+
+  /** @return the script arguments encoding the collected commands: for each command its argument count, name and arguments */
+  def scriptArgs: List[Any] = commands.toList.flatMap(command => (command.size - 1) :: command)
+
+  // - PRIVATE
+
+  private val commands = mutable.ListBuffer[List[Any]]()
+
+  private def add(command: List[Any]) {
+    commands += command
+  }
+}
@@ -0,0 +1,14 @@
+package com.janrain.backplane.dao.redis
+
+/**
+ * Receives the committed message batches fed to a MessageNotifier, in commit order.
+ */
+trait MessageFeedListener[BMT] {
+
+  /** messages committed after previousLastId, up to and including lastId */
+  def committed(previousLastId: String, lastId: String, messages: java.util.List[BMT])
+
+  /** the feed subscription was lost, committed batches may be missed until the next committed() call */
+  def missed()
+
+}
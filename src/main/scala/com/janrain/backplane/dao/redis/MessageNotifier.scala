@@ -0,0 +1,280 @@
+package com.janrain.backplane.dao.redis
+
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit, Executors}
+import java.util.concurrent.atomic.AtomicBoolean
+import com.redis.{E, M, U, S, RedisClient}
+import com.janrain.backplane.config.BackplaneConfig
+import com.janrain.backplane.common.model.{Message, MessageField, BackplaneMessage}
+import com.janrain.util.Loggable
+import org.apache.commons.lang.exception.ExceptionUtils
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+
+/**
+ * Node-local subscription registry for the committed messages feed published by the message processor.
+ *
+ * Requests waiting for messages register with the bus / channel keys they are interested in;
+ * each committed batch received from the feed is fanned out to the registrations matching
+ * the bus or channel of its messages, so that waiting requests get the new messages directly,
+ * without querying redis.
+ *
+ * Each feed entry carries the last message ID (of any shard) before and after the batch: if a batch was missed
+ * (e.g. while resubscribing) all registrations are notified that they need to re-check the store.
+ * Each message processor shard publishes its own feed, received on one subscription in commit order,
+ * continuity is checked across shards. A batch committed while another shard's commit with an earlier
+ * reserved time was in flight is not ordered (see MessageProcessorDaoSupport.reserveCommit()):
+ * its messages are not delivered, the matching registrations are notified to re-check the store instead.
+ * Pub/sub delivery is best effort, callers should also re-check the store periodically while
+ * the subscription is down (see isConnected).
+ *
+ * All committed batches are also passed to the (optional) feed listener, which requires a single commit order
+ * and is only fed if the dao has a single processor shard.
+ */
+class MessageNotifier[BMF <: MessageField, BMT <: BackplaneMessage[BMF]]( dao: MessageProcessorDaoSupport[BMF,BMT],
+                                                                         feedListener: Option[MessageFeedListener[BMT]] = None )
+  extends Loggable {
+
+  import MessageNotifier._
+
+  val notificationsChannel = dao.notificationsChannel(0)
+
+  val notificationsChannels: List[String] = (0 until dao.processorShards).map(dao.notificationsChannel).toList
+
+  /** @return true if the notifications subscription is currently active */
+  def isConnected: Boolean = connected.get
+
+  /**
+   * @return the last message ID of the latest feed entry received, of any shard, None if none was received yet;
+   *         a store check that returns an older last ID (e.g. read from a lagging replica) may miss messages notified before it
+   */
+  def lastFeedId: Option[String] = latestFeedId
+
+  /**
+   * Registers for the messages committed (after this call) for any of the provided keys.
+   *
+   * The listener is invoked on the notifications thread each time messages are delivered to the registration,
+   * and must not block. The returned Registration must be cancelled when no longer needed.
+   */
+  def register(keys: Iterable[String])(listener: => Unit): Registration = {
+    val registration = new Registration(keys.toSet, () => listener)
+    registration.keys.foreach(add(_, registration))
+    registration
+  }
+
+  def shutdown() {
+    stopped.set(true)
+    scheduledExecutor.shutdownNow()
+    disconnect()
+  }
+
+  class Registration private[MessageNotifier](val keys: Set[String], listener: () => Unit) {
+
+    /**
+     * @return the messages delivered since the previous drain() call, in commit order,
+     *         or None if some messages may have been missed and the store needs to be checked
+     */
+    def drain(): Option[List[BMT]] = synchronized {
+      val drained = pending.map(_.toList)
+      pending = Some(Vector.empty)
+      drained
+    }
+
+    def cancel() {
+      keys.foreach(MessageNotifier.this.remove(_, this))
+    }
+
+    private var pending: Option[Vector[BMT]] = Some(Vector.empty)
+
+    private[MessageNotifier] def deliver(messages: Option[List[BMT]]) {
+      synchronized {
+        pending = for {
+          alreadyPending <- pending
+          delivered <- messages
+          if alreadyPending.size + delivered.size <= MAX_PENDING_MESSAGES
+        } yield alreadyPending ++ delivered
+      }
+      try {
+        listener()
+      } catch {
+        case e: Exception => logger.warn("%s notification listener failed: %s".format(notificationsChannel, ExceptionUtils.getRootCauseMessage(e)))
+      }
+    }
+  }
+
+  // - PRIVATE
+
+  private class Registrations extends java.util.HashSet[Registration] {
+    var removed = false
+  }
+
+  private val registrations = new ConcurrentHashMap[String, Registrations]
+
+  private val connected = new AtomicBoolean(false)
+  private val stopped = new AtomicBoolean(false)
+
+  @volatile private var subscriber: Option[RedisClient] = None
+
+  /** last message ID received from the feed since (re)subscribing, accessed only from the notifications thread */
+  @volatile private var chainedFeedId: Option[String] = None
+
+  @volatile private var latestFeedId: Option[String] = None
+
+  private val committedFeedListener = feedListener.filter(_ => dao.processorShards == 1)
+
+  private val scheduledExecutor = Executors.newScheduledThreadPool(1)
+
+  BackplaneConfig.addToBackgroundServices("%s_subscriber".format(notificationsChannel), scheduledExecutor)
+
+  scheduleSubscribe(0)
+
+  private def add(key: String, registration: Registration) {
+    var added = false
+    while (! added) {
+      val created = new Registrations
+      val existing = registrations.putIfAbsent(key, created)
+      val forKey = if (existing != null) existing else created
+      forKey.synchronized {
+        if (! forKey.removed) {
+          forKey.add(registration)
+          added = true
+        }
+      }
+    }
+  }
+
+  private def remove(key: String, registration: Registration) {
+    val forKey = registrations.get(key)
+    if (forKey != null) forKey.synchronized {
+      forKey.remove(registration)
+      if (forKey.isEmpty) {
+        forKey.removed = true
+        registrations.remove(key, forKey)
+      }
+    }
+  }
+
+  private def registered(key: String): Array[Registration] = {
+    val forKey = registrations.get(key)
+    if (forKey == null) Array.empty
+    else forKey.synchronized { forKey.toArray(new Array[Registration](forKey.size)) }
+  }
+
+  /** notifies all current registrations that the store needs to be checked */
+  private def deliverMissed() {
+    committedFeedListener.foreach(_.missed())
+    registrations.keySet.flatMap(registered).foreach(_.deliver(None))
+  }
+
+  private def onFeed(channel: String, feed: String) {
+    feed.split(FEED_SEPARATOR, -1).toList match {
+      case previousLastId :: lastId :: ordered :: serializedMessages =>
+        val complete = chainedFeedId.exists(_ == previousLastId)
+        chainedFeedId = Some(lastId)
+        latestFeedId = Some(lastId)
+        val messages = serializedMessages.map(serialized => dao.mpInstantiate(Message.deserialize(serialized)))
+        if (! complete) {
+          logDebug("%s feed entry does not follow %s, notifying all registrations".format(channel, previousLastId))
+          deliverMissed()
+        }
+        committedFeedListener.foreach(_.committed(previousLastId, lastId, seqAsJavaList(messages)))
+        if (complete) {
+          val delivered = mutable.LinkedHashMap[Registration, mutable.ListBuffer[BMT]]()
+          messages.foreach(msg =>
+            List(busKey(msg.bus), channelKey(msg.channel), ANY).flatMap(registered).foreach(registration => {
+              val forRegistration = delivered.getOrElseUpdate(registration, mutable.ListBuffer[BMT]())
+              if (forRegistration.isEmpty || ! (forRegistration.last eq msg)) forRegistration += msg
+            }))
+          delivered.foreach { case (registration, messages) => registration.deliver(if (ordered == ORDERED) Some(messages.toList) else None) }
+        }
+      case _ =>
+        logger.warn("%s invalid feed entry received: %s".format(channel, feed))
+    }
+  }
+
+  private def scheduleSubscribe(delaySeconds: Long) {
+    if (! stopped.get) {
+      scheduledExecutor.schedule(new Runnable {
+        override def run() {
+          subscribe()
+        }
+      }, delaySeconds, TimeUnit.SECONDS)
+    }
+  }
+
+  private def subscribe() {
+    try {
+      disconnect()
+      val client = Redis.subscriberClient
+      subscriber = Some(client)
+      client.subscribe(notificationsChannels.head, notificationsChannels.tail: _*) {
+        case S(channel, count) =>
+          chainedFeedId = None
+          // connected once subscribed to all shards' feeds
+          if (count == notificationsChannels.size) connected.set(true)
+          logger.info("%s subscribed to message notifications".format(channel))
+        case M(channel, message) =>
+          try {
+            onFeed(channel, message)
+          } catch {
+            case e: Exception =>
+              logger.warn("%s error processing message notification: %s".format(notificationsChannel, ExceptionUtils.getRootCauseMessage(e)))
+              chainedFeedId = None
+              deliverMissed()
+          }
+        case U(channel, count) =>
+          connected.set(false)
+          deliverMissed()
+          logger.info("%s unsubscribed from message notifications".format(notificationsChannel))
+        case E(e) =>
+          connected.set(false)
+          deliverMissed()
+          logger.warn("%s message notifications subscription error, resubscribing: %s".format(notificationsChannel, ExceptionUtils.getRootCauseMessage(e)))
+          scheduleSubscribe(RESUBSCRIBE_DELAY_SECONDS)
+      }
+    } catch {
+      case e: Exception =>
+        connected.set(false)
+        logger.warn("%s error subscribing to message notifications: %s".format(notificationsChannel, ExceptionUtils.getRootCauseMessage(e)))
+        scheduleSubscribe(RESUBSCRIBE_DELAY_SECONDS)
+    }
+  }
+
+  private def disconnect() {
+    connected.set(false)
+    subscriber.foreach(client => {
+      try {
+        client.disconnect
+      } catch {
+        case e: Exception => logDebug("error disconnecting notifications subscriber: " + e.getMessage)
+      }
+    })
+    subscriber = None
+  }
+}
+
+object MessageNotifier {
+
+  /** registration key matching any committed message */
+  final val ANY = "*"
+
+  def busKey(bus: String) = "bus:" + bus
+
+  def channelKey(channel: String) = "channel:" + channel
+
+  /**
+   * @return the messages part of the feed entry for a committed batch, as consumed by the MessageNotifier.
+   *         Feed entries are published by the commit script (see MessageProcessorDaoSupport.COMMIT_SCRIPT):
+   *         the last message ID before the batch, the last message ID after it, the ordered flag, then the serialized messages
+   */
+  def feedMessages(messages: List[Message[_]]): String = messages.map(_.serialize).mkString(FEED_SEPARATOR)
+
+  // serialized messages are base64 encoded and never contain spaces
+  private final val FEED_SEPARATOR = " "
+
+  private final val ORDERED = "1"
+
+  // more pending messages than this for one registration and the store will need to be checked instead
+  private final val MAX_PENDING_MESSAGES = 1000
+
+  private final val RESUBSCRIBE_DELAY_SECONDS = 2L
+}
@@ -1,7 +1,19 @@
 package com.janrain.backplane.dao.redis
 
+import java.util.Date
+import java.util.concurrent.TimeUnit
+import com.redis.RedisClient
 import com.janrain.backplane.common.model.{MessageField, BackplaneMessage}
+import com.janrain.backplane.common.DateTimeUtils
 import com.janrain.backplane.config.SystemProperties
+import com.janrain.backplane.config.dao.ConfigDAOs
+import com.janrain.backplane.common.QueueFullException
+import com.janrain.backplane.dao.DaoException
+import com.janrain.backplane.server1.model.BusConfig1
+import com.janrain.backplane.server2.model.BusConfig2
+import com.janrain.util.RandomUtils
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.MetricName
 
 /**
  * Mixin for RedisMessageDao with support for Backplane[1|2]Message / Message Processor
@@ -20,14 +32,392 @@ trait MessageProcessorDaoSupport[BMF <: MessageField,BMT <: BackplaneMessage[BMF
 
   def channelKey(channel: String): String = SystemProperties.INSTANCE_ID + ":" + keyPrefix + "channelIndex:" + channel
 
-  val messagesQueueKey: String = SystemProperties.INSTANCE_ID + ":" + keyPrefix + "queue"
+  /** ID of the latest message committed to the channel index, expires HIGH_WATER_MARK_TTL_SECONDS after the last update */
+  def channelLastIdKey(channel: String): String = SystemProperties.INSTANCE_ID + ":" + keyPrefix + "channelLastId:" + channel
+
+  /** ID of the latest message committed to the bus index, expires HIGH_WATER_MARK_TTL_SECONDS after the last update */
+  def busLastIdKey(bus: String): String = SystemProperties.INSTANCE_ID + ":" + keyPrefix + "busLastId:" + bus
+
+  /** secondary index of messages with the given scope field value, score = msg time, value = msgId */
+  def fieldIndexKey(field: String, value: String): String = SystemProperties.INSTANCE_ID + ":" + keyPrefix + "fieldIndex:" + field + ":" + value
+
+  /**
+   * Hash of processor shard -> time after which all of the shard's messages are in the field's secondary indexes;
+   * the indexes are usable only if all shards are present, after the latest of their times.
+   */
+  def fieldIndexStartKey(field: String): String = SystemProperties.INSTANCE_ID + ":" + keyPrefix + "fieldIndexStarts:" + field
+
+  /**
+   * Number of message processor shards, each with its own queue, processor (leader), last ID and notifications channel.
+   * Messages of a bus are processed in order by one shard, see shard(); each commit, of any shard,
+   * is timestamped after all previous commits, see reserveCommit().
+   */
+  def processorShards: Int = 1
+
+  /** @return the message processor shard for the bus: all messages posted to a bus are processed in order by the same shard */
+  def shard(bus: String): Int = if (processorShards <= 1) 0 else (bus.hashCode & Int.MaxValue) % processorShards
+
+  def messagesQueueKey(shard: Int): String = sharded(SystemProperties.INSTANCE_ID + ":" + keyPrefix + "queue", shard)
+
+  /** signals the message processor waiting for an empty queue to fill up, holds at most one (pending) signal, see enqueue() */
+  def messagesQueueSignalKey(shard: Int): String = sharded(SystemProperties.INSTANCE_ID + ":" + keyPrefix + "queueSignal", shard)
 
   val messagesKey: String = SystemProperties.INSTANCE_ID + ":" + keyPrefix + "index"
 
-  val lastIdKey: String = SystemProperties.INSTANCE_ID + ":" + keyPrefix +  "lastId"
+  /**
+   * Messages by expiration, score = expiration time (millis), value = msg metadata and secondary index keys, see expiryEntry();
+   * drained by the message processor.
+   */
+  val expiryKey: String = SystemProperties.INSTANCE_ID + ":" + keyPrefix + "expiry"
+
+  /**
+   * Time the sweep of the messages indexed before the expiry index (i.e. unknown to the expiry drain) started,
+   * SWEEP_DONE once none are left, see RedisMessageProcessor.sweepPreExpiryIndex().
+   */
+  val preExpiryIndexSweepKey: String = SystemProperties.INSTANCE_ID + ":" + keyPrefix + "preExpiryIndexSweep"
+
+  def lastIdKey(shard: Int): String = sharded(SystemProperties.INSTANCE_ID + ":" + keyPrefix +  "lastId", shard)
+
+  /**
+   * Latest message time committed by any shard. Readers hand out (time based) since cursors up to it,
+   * so all messages of a later commit must be after it, see reserveCommit().
+   */
+  val lastCommitTimeKey: String = SystemProperties.INSTANCE_ID + ":" + keyPrefix + "lastCommitTime"
+
+  /** @return the latest message time committed by any shard, 0 if none */
+  def lastCommitTime(redisClient: RedisClient): Long = redisClient.get(lastCommitTimeKey).map(_.toLong).getOrElse(0L)
+
+  /**
+   * Reservation of the shard's in-flight commit, if sharded: the time its messages are timestamped from and a token,
+   * expires after COMMIT_RESERVATION_MILLIS, see reserveCommit().
+   */
+  def commitReservationKey(shard: Int): String = sharded(SystemProperties.INSTANCE_ID + ":" + keyPrefix + "commitReservation", shard)
+
+  /** all shards' commit reservation keys, read by readers along with the indexes (see commitCap()); none with a single shard */
+  def commitReservationKeys: List[String] = if (processorShards <= 1) Nil else (0 until processorShards).map(commitReservationKey).toList
+
+  /**
+   * Reserves the shard's next commit: its messages must be timestamped from the returned time on, after the last commit time.
+   * Shards commit concurrently, without waiting for each other: until a reservation is committed (or expires)
+   * readers don't hand out since cursors at or after its time, so a commit of another shard timestamped after it
+   * doesn't move cursors past the reserved messages, see commitCap().
+   * With a single shard commits are ordered by the shard's last ID, nothing is reserved.
+   *
+   * @return the min message time and the reservation to commit with, '' if none
+   */
+  def reserveCommit(redisClient: RedisClient, shard: Int): (Long, String) =
+    if (processorShards <= 1) (lastCommitTime(redisClient) + 1, "")
+    else MessageProcessorDaoSupport.RESERVE_SCRIPT.evalMulti(redisClient, List(lastCommitTimeKey, commitReservationKey(shard)),
+      List(RandomUtils.randomString(10), MessageProcessorDaoSupport.COMMIT_RESERVATION_MILLIS))
+      .flatMap(_.headOption.flatten) match {
+        case Some(reservation) => (MessageProcessorDaoSupport.reservedTime(reservation), reservation)
+        case None => throw new DaoException("empty result received for commit reservation script")
+      }
+
+  /**
+   * @param reservations the values of commitReservationKeys, read in the same transaction as the indexes
+   * @return the latest message time readers may hand out since cursors for, None if not capped:
+   *         before the earliest reservation of the in-flight commits
+   */
+  def commitCap(reservations: List[Any]): Option[Long] =
+    reservations.collect { case Some(reservation) => MessageProcessorDaoSupport.reservedTime(reservation.toString) - 1 }.reduceOption(_ min _)
+
+  /** pub/sub channel on which the shard's message processor publishes the feed of committed messages, see MessageNotifier */
+  def notificationsChannel(shard: Int): String = sharded(SystemProperties.INSTANCE_ID + ":" + keyPrefix + "notifications", shard)
+
+  @throws(classOf[QueueFullException])
+  def enqueue(message: BMT) {
+    enqueue(List(message))
+  }
+
+  /**
+   * Atomically adds the messages to their shards' message processor queues, in order, and signals the (possibly waiting) processors;
+   * the signal lists are trimmed to one entry, pending signals are not accumulated.
+   * Throws QueueFullException, without queuing any of the messages, if any of their shards' queues is deeper than the configured maximum,
+   * checked against a queue depth cached for QUEUE_DEPTH_CACHE_MILLIS.
+   */
+  @throws(classOf[QueueFullException])
+  def enqueue(messages: List[BMT]) {
+    val shards = messages.map(message => shard(message.bus)).distinct
+    shards.foreach(checkShardQueueDepth)
+    Redis.writePool.withClient(_.pipeline(p => {
+      messages.foreach(message => p.rpush(messagesQueueKey(shard(message.bus)), message.serialize))
+      shards.foreach(messageShard => {
+        p.lpush(messagesQueueSignalKey(messageShard), "")
+        p.ltrim(messagesQueueSignalKey(messageShard), 0, 0)
+      })
+    })).getOrElse(throw new DaoException("enqueue failed for messages " + messages.map(_.id).mkString(",")))
+  }
+
+  /** time from message post (ID time) until committed, i.e. visible to readers, for queued and directly written messages */
+  val visibleLatency = Metrics.newHistogram(new MetricName(processorId, classOf[MessageProcessorDaoSupport[_,_]].getName.replace(".", "_"), "visible_latency"))
+
+  /**
+   * Commits the message directly, bypassing the message processor queue:
+   * the message is assigned an ID after its shard's last ID and the reserved commit time, then written with its indexes
+   * (invalidating the secondary indexes no longer configured since the previous direct write),
+   * published on its shard's notifications channel and set as the shard's last ID, see commit().
+   *
+   * @return false if the message could not be committed within DIRECT_WRITE_ATTEMPTS because of concurrent commits to its shard
+   */
+  def storeDirect(message: BMT): Boolean = {
+    val messageShard = shard(message.bus)
+    val indexedFields = secondaryIndexFields.intersect(secondaryIndexableFields)
+    val noLongerIndexed = directIndexedFields.getOrElse(secondaryIndexableFields) -- indexedFields
+    val stored = Redis.writePool.withClient(redisClient => (1 to MessageProcessorDaoSupport.DIRECT_WRITE_ATTEMPTS).exists(_ => {
+      val lastId = redisClient.get(lastIdKey(messageShard)).getOrElse("")
+      val (minTime, reservation) = reserveCommit(redisClient, messageShard)
+      val committed = afterLastId(message, lastId, minTime)
+      val writes = new BatchWrites
+      // secondary index start times are maintained by the message processor, only invalidated here
+      noLongerIndexed.foreach(field => writes.hdel(fieldIndexStartKey(field), messageShard))
+      addMessageWrites(committed, indexedFields, writes)
+      commit(redisClient, messageShard, lastId, reservation, committed.id, 0, List(committed), writes)
+    }))
+    if (stored) {
+      directIndexedFields = Some(indexedFields)
+      visibleLatency.update(System.currentTimeMillis - BackplaneMessage.timeFromId(message.id))
+    } else directWriteFailures.mark()
+    stored
+  }
+
+  /**
+   * Atomically applies the writes, removes the first queuedCount messages from the shard's queue, sets the shard's last ID
+   * and the last commit time, releases the shard's commit reservation and publishes the committed messages
+   * on the shard's notifications channel (see MessageNotifier), only if the shard's last ID is still expectedLastId
+   * and the reservation (see reserveCommit()) is still held.
+   *
+   * @return false if the last ID was changed (by another writer) or the reservation expired, and nothing was written
+   */
+  def commit(redisClient: RedisClient, shard: Int, expectedLastId: String, reservation: String, lastId: String, queuedCount: Int,
+             messages: List[BMT], writes: BatchWrites): Boolean = {
+    val otherReservations = commitReservationKeys.filterNot(_ == commitReservationKey(shard))
+    val committed = MessageProcessorDaoSupport.COMMIT_SCRIPT.evalMulti(redisClient,
+      List(lastIdKey(shard), messagesQueueKey(shard), lastCommitTimeKey, messagesKey, commitReservationKey(shard)) ::: otherReservations,
+      expectedLastId :: reservation :: lastId :: BackplaneMessage.timeFromId(lastId) :: queuedCount ::
+        notificationsChannel(shard) :: MessageNotifier.feedMessages(messages) :: writes.scriptArgs)
+      .flatMap(_.headOption.flatten).getOrElse(throw new DaoException("empty result received for commit script")) == "1"
+    if (! committed) commitAborts.mark()
+    committed
+  }
+
+  /**
+   * Adds the writes storing one message to redis to the supplied batch.
+   * The following associated redis data structures are created or updated:
+   * - key = itemKey(msgId), value = message hash, see storedFields()
+   * - key = messagesKey, add sorted set entry, score = msg time, value = msg metadata
+   * - key = expiryKey, add sorted set entry, score = msg expiration time, value = msg metadata and secondary index keys
+   * - key = busKey(bus), add sorted set entry, score = msg time, value = msgId
+   * - key = channelKey(channel), add sorted set entry, score = msg time, value = msgId
+   * - key = fieldIndexKey(field, value), for the provided secondary index fields, same as above
+   * - messages, bus, channel and secondary index keys are bounded, see boundIndex()
+   * - key = channelLastIdKey(channel), value = msgId (high-water mark)
+   * - key = busLastIdKey(bus), value = msgId (high-water mark)
+   */
+  def addMessageWrites(message: BMT, indexedFields: Set[String], writes: BatchWrites) {
+    val msgId = message.id
+    val messageTime = BackplaneMessage.timeFromId(msgId)
+    val expireSeconds = DateTimeUtils.getExpireSeconds(msgId, message.expiration, message.sticky)
+    writes.hmset(itemKey(msgId), storedFields(message))
+    writes.expire(itemKey(msgId), expireSeconds)
+    writes.zadd(channelKey(message.channel), messageTime, msgId)
+    boundIndex(channelKey(message.channel), messageTime, writes)
+    writes.zadd(busKey(message.bus), messageTime, msgId)
+    boundIndex(busKey(message.bus), messageTime, writes)
+    val indexKeys = secondaryIndexKeys(message, indexedFields)
+    indexKeys.foreach(indexKey => {
+      writes.zadd(indexKey, messageTime, msgId)
+      boundIndex(indexKey, messageTime, writes)
+    })
+    writes.zadd(messagesKey, messageTime, metaData(message.bus, message.channel, msgId, message.expiration))
+    boundIndex(messagesKey, messageTime, writes)
+    writes.zadd(expiryKey, System.currentTimeMillis + expireSeconds * 1000L,
+      expiryEntry(metaData(message.bus, message.channel, msgId, message.expiration), indexKeys))
+    writes.setex(channelLastIdKey(message.channel), MessageProcessorDaoSupport.HIGH_WATER_MARK_TTL_SECONDS, msgId)
+    writes.setex(busLastIdKey(message.bus), MessageProcessorDaoSupport.HIGH_WATER_MARK_TTL_SECONDS, msgId)
+  }
+
+  /**
+   * Keeps an index (sorted set, score = msg time) proportional to the live messages it references:
+   * trims the entries older than the max message retention before messageTime
+   * and (re)sets the index to expire after the max message retention, if no new messages are indexed.
+   */
+  def boundIndex(indexKey: Any, messageTime: Long, writes: BatchWrites) {
+    writes.zremrangebyscore(indexKey, "-inf", "(" + (messageTime - MessageProcessorDaoSupport.INDEX_RETENTION_SECONDS * 1000L))
+    writes.expire(indexKey, MessageProcessorDaoSupport.INDEX_RETENTION_SECONDS)
+  }
+
+  /** @return the messagesKey entry (metadata) for a message */
+  def metaData(bus: String, channel: String, msgId: String, expire: String) = "%s %s %s %s".format(bus, channel, msgId, expire)
+
+  /**
+   * @return the expiryKey entry for a message: its metadata, followed by a newline and its secondary index keys if any,
+   *         each prefixed by its UTF-8 byte length and a colon (index keys may contain any characters),
+   *         see RedisMessageProcessor.EXPIRY_DRAIN_SCRIPT
+   */
+  def expiryEntry(metaData: String, indexKeys: List[String]): String =
+    if (indexKeys.isEmpty) metaData
+    else metaData + "\n" + indexKeys.map(key => key.getBytes("UTF-8").length + ":" + key).mkString
+
+  /** @return a new message ID for the provided time, for messages re-numbered when committed */
+  def newMessageId(time: Long): String = BackplaneMessage.generateMessageId(new Date(time))
+
+  /** fields that may be indexed in addition to bus and channel */
+  def secondaryIndexableFields: Set[String] = Set.empty
+
+  /** fields currently configured to be indexed in addition to bus and channel */
+  def secondaryIndexFields: Set[String] = Set.empty
+
+  /** @return the message's secondary index keys for the provided fields */
+  def secondaryIndexKeys(message: BMT, fields: Set[String]): List[String] =
+    fields.toList.flatMap(field => message.get(field).map(fieldIndexKey(field, _)))
+
+  /** @return the message fields as stored by the message processor in the message's hash */
+  def storedFields(message: BMT): Map[String, String] = message
+
+  /** secondary index fields maintained by the last direct write, None if none yet */
+  @volatile private var directIndexedFields: Option[Set[String]] = None
+
+  private val commitAborts = Metrics.newMeter(
+    new MetricName(processorId, classOf[MessageProcessorDaoSupport[_,_]].getName.replace(".", "_"), "commit_aborts"), "commits", TimeUnit.SECONDS)
+
+  private val directWriteFailures = Metrics.newMeter(
+    new MetricName(processorId, classOf[MessageProcessorDaoSupport[_,_]].getName.replace(".", "_"), "direct_write_failures"), "messages", TimeUnit.SECONDS)
+
+  private val queueFullRejections = Metrics.newMeter(
+    new MetricName(processorId, classOf[MessageProcessorDaoSupport[_,_]].getName.replace(".", "_"), "queue_full_rejections"), "messages", TimeUnit.SECONDS)
+
+  /** shard -> (time checked, queue depth) */
+  @volatile private var queueDepths: Map[Int, (Long, Long)] = Map.empty
+
+  private def checkShardQueueDepth(queueShard: Int) {
+    val maxDepth = ConfigDAOs.serverConfigDao.oneServerConfig.map(_.messageQueueMaxDepth).getOrElse(0L)
+    if (maxDepth > 0 && queueDepth(queueShard) > maxDepth) {
+      queueFullRejections.mark()
+      throw new QueueFullException("message processor queue is full, retry later", MessageProcessorDaoSupport.QUEUE_FULL_RETRY_AFTER_SECONDS)
+    }
+  }
+
+  private def queueDepth(queueShard: Int): Long = {
+    val now = System.currentTimeMillis
+    queueDepths.get(queueShard) match {
+      case Some((checked, depth)) if now - checked < MessageProcessorDaoSupport.QUEUE_DEPTH_CACHE_MILLIS => depth
+      case _ =>
+        val depth = Redis.readPool.withClient(_.llen(messagesQueueKey(queueShard))).getOrElse(0L)
+        queueDepths += queueShard -> (now, depth)
+        depth
+    }
+  }
+
+  /** @return the message, with a new ID if its ID is not after lastId or before minTime */
+  private def afterLastId(message: BMT, lastId: String, minTime: Long): BMT = {
+    val fromTime = math.max(BackplaneMessage.timeFromId(lastId) + 1, minTime)
+    if (BackplaneMessage.timeFromId(message.id) >= fromTime) message
+    else mpInstantiate(message + (idField.name -> newMessageId(math.max(System.currentTimeMillis, fromTime))))
+  }
+
+  // first shard's keys are the same as before sharding
+  private def sharded(key: String, shard: Int): String = if (shard == 0) key else key + ":" + shard
 
   // extend access scope from Redis/MessageDao'
   def itemKey(itemId: String): String = getKey(itemId)
   def mpInstantiate(data: Map[_,_]): BMT = instantiate(data)
 
 }
+
+object MessageProcessorDaoSupport {
+
+  /** missing high-water marks only mean that the indexes have to be checked */
+  final val HIGH_WATER_MARK_TTL_SECONDS = 3600
+
+  final val DIRECT_WRITE_ATTEMPTS = 5
+
+  final val QUEUE_DEPTH_CACHE_MILLIS = 1000L
+
+  final val QUEUE_FULL_RETRY_AFTER_SECONDS = 5
+
+  /** no message is retained longer than the max (sticky) bus retention time, of either backplane version */
+  final val INDEX_RETENTION_SECONDS = math.max(BusConfig1.RETENTION_STICKY_MAX_SECONDS, BusConfig2.RETENTION_STICKY_MAX_SECONDS).toInt
+
+  /** value of preExpiryIndexSweepKey once the sweep completed */
+  final val SWEEP_DONE = "done"
+
+  /** an in-flight commit caps readers until committed, or at most this long if its processor fails, see reserveCommit() */
+  final val COMMIT_RESERVATION_MILLIS = 5000L
+
+  /** @return the time reserved by a commit reservation, see RESERVE_SCRIPT */
+  def reservedTime(reservation: String): Long = reservation.takeWhile(_ != ' ').toLong
+
+  /**
+   * Reserves a shard's next commit, after the last commit time of all shards.
+   *
+   * KEYS: last commit time key, the shard's commit reservation key
+   * ARGV: reservation token, reservation expiration (millis)
+   * returns: the reservation: reserved time (last commit time + 1) and token, space separated
+   */
+  private[redis] val RESERVE_SCRIPT = new RedisScript("message_commit_reserve", """
+    local reserved = tonumber(redis.call('GET', KEYS[1]) or '0') + 1
+    local reservation = string.format('%.0f', reserved) .. ' ' .. ARGV[1]
+    redis.call('SET', KEYS[2], reservation, 'PX', ARGV[2])
+    return { reservation }
+  """)
+
+  /**
+   * Applies a message processor batch (or a direct write) atomically, if the shard's last ID is unchanged
+   * and its commit reservation (if any) is still held:
+   * runs the write commands, removes the batch's messages from the queue, updates the last ID and the last commit time,
+   * releases the reservation and publishes the feed entry of the batch, see MessageNotifier.
+   * The entry is ordered unless another shard's in-flight commit reserved a time not after the batch's last message,
+   * i.e. its messages may be committed later and still be before the batch's messages.
+   * The written keys are not declared in KEYS, the script is not compatible with redis cluster.
+   *
+   * KEYS: last ID key, queue key, last commit time key, messages (metadata) index key, commit reservation key,
+   *       then the other shards' commit reservation keys
+   * ARGV: expected last ID ('' if not set), commit reservation ('' if none), new last ID, last message time,
+   *       batch messages count (0 for direct writes), notifications channel, serialized messages of the feed entry,
+   *       then for each write command its argument count, name and arguments, see BatchWrites
+   * returns: '1' if committed, '0' if the last ID was changed or the reservation expired (and nothing was written)
+   */
+  private[redis] val COMMIT_SCRIPT = new RedisScript("message_commit", """
+    local function messageId(metaData)
+      return metaData and string.match(metaData, '^%S+ %S+ (%S+)') or ''
+    end
+    local reserved = ARGV[2] ~= '' and redis.call('GET', KEYS[5]) == ARGV[2]
+    if (redis.call('GET', KEYS[1]) or '') ~= ARGV[1] or (ARGV[2] ~= '' and not reserved) then
+      if reserved then
+        redis.call('DEL', KEYS[5])
+      end
+      return { '0' }
+    end
+    local previousLastId = messageId(redis.call('ZRANGE', KEYS[4], -1, -1)[1])
+    local i = 8
+    while i <= #ARGV do
+      local argsCount = tonumber(ARGV[i])
+      redis.call(unpack(ARGV, i + 1, i + 1 + argsCount))
+      i = i + argsCount + 2
+    end
+    local queuedCount = tonumber(ARGV[5])
+    if queuedCount > 0 then
+      redis.call('LTRIM', KEYS[2], queuedCount, -1)
+    end
+    redis.call('SET', KEYS[1], ARGV[3])
+    local lastTime = tonumber(ARGV[4])
+    if lastTime > tonumber(redis.call('GET', KEYS[3]) or '0') then
+      redis.call('SET', KEYS[3], ARGV[4])
+    end
+    local ordered = '1'
+    if reserved then
+      redis.call('DEL', KEYS[5])
+    end
+    for k = 6, #KEYS do
+      local reservation = redis.call('GET', KEYS[k])
+      if reservation and tonumber(string.match(reservation, '^%d+')) <= lastTime then
+        ordered = '0'
+      end
+    end
+    local lastId = messageId(redis.call('ZRANGE', KEYS[4], -1, -1)[1])
+    redis.call('PUBLISH', ARGV[6], previousLastId .. ' ' .. lastId .. ' ' .. ordered .. ' ' .. ARGV[7])
+    return { '1' }
+  """)
+
+}
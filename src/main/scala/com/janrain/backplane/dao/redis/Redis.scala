@@ -1,6 +1,6 @@
 package com.janrain.backplane.dao.redis
 
-import com.redis.RedisClientPool
+import com.redis.{RedisClient, RedisClientPool}
 import com.janrain.util.{Utils, Loggable}
 import com.janrain.backplane.config.SystemProperties
 import scala.util.Random
@@ -26,6 +26,9 @@ object Redis extends Loggable {
 
   def readPool: RedisClientPool = readPools(Random.nextInt(readPools.size))._2
 
+  /** @return a new, dedicated (not pooled) client for pub/sub subscriptions, connected to the primary redis server */
+  def subscriberClient: RedisClient = new RedisClient(writeRedisHost, writeRedisPort)
+
   logger.info("initialized redis read pool(s) for [%s], max idle connections per server: %s)".format(readPools.map(_._1).mkString(" "), REDIS_DEFAULT_MAX_IDLE_CLIENTS))
 
 
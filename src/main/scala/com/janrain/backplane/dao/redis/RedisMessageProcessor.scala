@@ -2,17 +2,16 @@ package com.janrain.backplane.dao.redis
 
 import java.util.concurrent.{TimeUnit, Executors}
 import com.janrain.backplane.config.{SystemProperties, BackplaneConfig}
+import com.janrain.backplane.config.dao.ConfigDAOs
 import java.util.concurrent.atomic.AtomicBoolean
 import com.netflix.curator.framework.CuratorFramework
 import com.netflix.curator.framework.state.ConnectionState
-import com.redis.{RedisCommand, RedisClient}
+import com.redis.RedisClient
 import com.janrain.backplane.common.model.{MessageField, BackplaneMessage, Message}
 import com.yammer.metrics.Metrics
-import com.yammer.metrics.core.MetricName
-import com.janrain.backplane.dao.{Dao, DaoException}
+import com.yammer.metrics.core.{Gauge, MetricName}
+import com.janrain.backplane.dao.{DaoException, Dao}
 import org.apache.commons.lang.exception.ExceptionUtils
-import java.util.Date
-import com.janrain.backplane.common.DateTimeUtils
 import com.janrain.util.Loggable
 import com.netflix.curator.framework.recipes.leader.LeaderSelectorListener
 
@@ -20,15 +19,47 @@ import com.netflix.curator.framework.recipes.leader.LeaderSelectorListener
 /**
  * ZooKeeper Leader Selector / message processor support for the Redis DAO implementation
  *
+ * Processes the messages queued for one of the dao's processor shards (see MessageProcessorDaoSupport.shard()),
+ * a leader is elected for each shard; expired messages are cleaned up by the first shard's leader.
+ *
  * @author Johnny Bufu
  */
-class RedisMessageProcessor[BMF <: MessageField, BMT <: BackplaneMessage[BMF]]( private val dao: Dao[BMT] with MessageProcessorDaoSupport[BMF,BMT] )
+class RedisMessageProcessor[BMF <: MessageField, BMT <: BackplaneMessage[BMF]]( private val dao: Dao[BMT] with MessageProcessorDaoSupport[BMF,BMT],
+                                                                               val shard: Int = 0 )
   extends LeaderSelectorListener with Loggable {
 
-  private val cleanupRunnable = new Runnable {
+  protected val processorId: String = if (shard == 0) dao.processorId else "%s:%s".format(dao.processorId, shard)
+
+  protected val messagesQueueKey: String = dao.messagesQueueKey(shard)
+
+  private val messagesQueueSignalKey = dao.messagesQueueSignalKey(shard)
+
+  private val lastIdKey = dao.lastIdKey(shard)
+
+  private val expiryRunnable = new Runnable {
+    override def run() {
+      try {
+        drainExpiredMessages()
+      } catch {
+        case e: Exception => logger.warn(e)
+      }
+    }
+  }
+
+  private val legacyCleanupRunnable = new Runnable {
     override def run() {
       try {
-        deleteExpiredMessages()
+        legacyCleanup.foreach(_())
+      } catch {
+        case e: Exception => logger.warn(e)
+      }
+    }
+  }
+
+  private val preExpiryIndexSweepRunnable = new Runnable {
+    override def run() {
+      try {
+        sweepPreExpiryIndex()
       } catch {
         case e: Exception => logger.warn(e)
       }
@@ -37,7 +68,7 @@ class RedisMessageProcessor[BMF <: MessageField, BMT <: BackplaneMessage[BMF]](
 
   private val scheduledExecutor = Executors.newScheduledThreadPool(1)
 
-  BackplaneConfig.addToBackgroundServices("%scleanup_runner".format(dao.processorId), scheduledExecutor)
+  BackplaneConfig.addToBackgroundServices("%scleanup_runner".format(processorId), scheduledExecutor)
 
   private val leader = new AtomicBoolean(false)
 
@@ -45,46 +76,146 @@ class RedisMessageProcessor[BMF <: MessageField, BMT <: BackplaneMessage[BMF]](
 
   override def takeLeadership(curatorFramework: CuratorFramework) {
     leader.set(true)
-    logger.info("[%s] %s leader elected for message processing".format(SystemProperties.machineName, dao.processorId))
-    val cleanupTask = scheduledExecutor.scheduleAtFixedRate(cleanupRunnable, 1, 2, TimeUnit.HOURS)
+    indexedFields = None
+    logger.info("[%s] %s leader elected for message processing".format(SystemProperties.machineName, processorId))
+    val cleanupTasks = if (shard != 0) Nil else
+      scheduledExecutor.scheduleWithFixedDelay(expiryRunnable, EXPIRY_DRAIN_INTERVAL_SECONDS, EXPIRY_DRAIN_INTERVAL_SECONDS, TimeUnit.SECONDS) ::
+      scheduledExecutor.scheduleWithFixedDelay(preExpiryIndexSweepRunnable, 1, LEGACY_CLEANUP_INTERVAL_HOURS * 60, TimeUnit.MINUTES) ::
+      legacyCleanup.map(_ => scheduledExecutor.scheduleAtFixedRate(legacyCleanupRunnable, 1, LEGACY_CLEANUP_INTERVAL_HOURS, TimeUnit.HOURS)).toList
     insertMessages()
-    cleanupTask.cancel(false)
-    logger.info("[%s] %s leader ended message processing".format(SystemProperties.machineName, dao.processorId))
+    cleanupTasks.foreach(_.cancel(false))
+    logger.info("[%s] %s leader ended message processing".format(SystemProperties.machineName, processorId))
   }
 
   override def stateChanged(curatorFramework: CuratorFramework, connectionState: ConnectionState) {
-    logger.info("%s leader selector state changed to %s".format(dao.processorId, connectionState))
+    logger.info("%s leader selector state changed to %s".format(processorId, connectionState))
     if (isLeader && (ConnectionState.LOST == connectionState || ConnectionState.SUSPENDED == connectionState)) {
       leader.set(false)
-      logger.info("%s leader lost connection, giving up leadership".format(dao.processorId))
+      logger.info("%s leader lost connection, giving up leadership".format(processorId))
+    }
+  }
+
+  /**
+   * Cleanup of data structures not covered by the expiry index (e.g. legacy formats), run by the first shard's leader
+   * every LEGACY_CLEANUP_INTERVAL_HOURS; none by default.
+   */
+  protected def legacyCleanup: Option[() => Unit] = None
+
+  /**
+   * Removes the messages expired since the previous run from the indexes, following the expiry index,
+   * in batches of at most EXPIRY_BATCH_SIZE messages, up to EXPIRY_MAX_BATCHES per run.
+   * Messages committed before the expiry index existed are removed by sweepPreExpiryIndex().
+   */
+  private def drainExpiredMessages() {
+    var batches = 0
+    var drained = EXPIRY_BATCH_SIZE
+    while (drained == EXPIRY_BATCH_SIZE && batches < EXPIRY_MAX_BATCHES && isLeader) {
+      val context = expiryBatchTime.time()
+      try {
+        val now = System.currentTimeMillis
+        Redis.writePool.withClient(RedisMessageProcessor.EXPIRY_DRAIN_SCRIPT.evalMulti(_,
+          List(dao.expiryKey, dao.messagesKey),
+          List(now, EXPIRY_BATCH_SIZE, dao.itemKey(""), dao.busKey(""), dao.channelKey(""))
+        )).map(_.flatten) match {
+          case Some(List(count, oldestExpiry)) =>
+            drained = count.toInt
+            expiredMessages.mark(drained)
+            expiryLag.update(math.max(0, now - oldestExpiry.toLong))
+          case other =>
+            throw new DaoException("unexpected expiry drain script result: " + other)
+        }
+      } finally {
+        context.stop()
+      }
+      batches += 1
     }
   }
 
-  protected def deleteExpiredMessages() {
-    Redis.readPool.withClient(_.zrangebyscore(dao.messagesKey, 0, minInclusive = true, Double.MaxValue, maxInclusive = true, None, RedisClient.ASC))
-      .map( allMsgIds => {
-      Redis.writePool.withClient(_.pipeline( p => {
-        allMsgIds.map(msgMeta => msgMeta.split(" ")).collect {
-          case Array(bus, channel, msgId, expTime) if Message.isExpired(Option(expTime)) =>
-            p.del(msgId)
-            p.zrem(dao.messagesKey, metaData(bus, channel, msgId, expTime))
-            p.zrem(dao.busKey(bus), msgId)
-            p.zrem(dao.channelKey(channel), msgId)
+  /**
+   * Removes the expired messages committed before the expiry index existed, which the expiry drain doesn't know about:
+   * sweeps the messages index entries up to the time the sweep first ran, in batches of at most EXPIRY_BATCH_SIZE,
+   * every LEGACY_CLEANUP_INTERVAL_HOURS until none are left. Their bus and channel indexes, if idle since, are set to expire.
+   */
+  private def sweepPreExpiryIndex() {
+    val sweepStart = Redis.writePool.withClient(redisClient => {
+      redisClient.setnx(dao.preExpiryIndexSweepKey, System.currentTimeMillis)
+      redisClient.get(dao.preExpiryIndexSweepKey)
+    }).filterNot(_ == MessageProcessorDaoSupport.SWEEP_DONE)
+    sweepStart.foreach(sweepUntil => {
+      var from = "-inf"
+      var swept = EXPIRY_BATCH_SIZE
+      var live = 0
+      while (swept == EXPIRY_BATCH_SIZE && isLeader) {
+        Redis.writePool.withClient(RedisMessageProcessor.PRE_EXPIRY_INDEX_SWEEP_SCRIPT.evalMulti(_,
+          List(dao.messagesKey),
+          List(from, sweepUntil, EXPIRY_BATCH_SIZE, dao.itemKey(""), dao.busKey(""), dao.channelKey(""), MessageProcessorDaoSupport.INDEX_RETENTION_SECONDS)
+        )).map(_.flatten) match {
+          case Some(List(count, liveCount, lastScore)) =>
+            swept = count.toInt
+            live += liveCount.toInt
+            expiredMessages.mark(swept - liveCount.toInt)
+            // live entries sharing the last score are swept again, unless they filled the whole batch
+            from = if (lastScore == from) "(" + lastScore else lastScore
+          case other =>
+            throw new DaoException("unexpected pre expiry index sweep script result: " + other)
         }
-      }))
+      }
+      if (swept < EXPIRY_BATCH_SIZE && live == 0) {
+        Redis.writePool.withClient(_.set(dao.preExpiryIndexSweepKey, MessageProcessorDaoSupport.SWEEP_DONE))
+        logger.info("%s no messages left from before the expiry index, sweep completed".format(processorId))
+      }
     })
   }
 
-  private val timeInQueue = Metrics.newHistogram(new MetricName(dao.processorId, this.getClass.getName.replace(".", "_"), "time_in_queue"))
+  /** secondary index fields maintained since the last transaction, None if unknown (new leader) */
+  @volatile private var indexedFields: Option[Set[String]] = None
+
+  /** secondary index fields maintained in the current transaction */
+  @volatile private var batchIndexedFields: Set[String] = Set.empty
+
+  private val timeInQueue = Metrics.newHistogram(new MetricName(processorId, this.getClass.getName.replace(".", "_"), "time_in_queue"))
 
-  private def metaData(bus: String, channel: String, msgId: String, expire: String) = "%s %s %s %s".format(bus, channel, msgId, expire)
+  private val batchSize = Metrics.newHistogram(new MetricName(processorId, this.getClass.getName.replace(".", "_"), "batch_size"))
+
+  private val queueDepth = Metrics.newHistogram(new MetricName(processorId, this.getClass.getName.replace(".", "_"), "queue_depth"))
+
+  private val ingestTime = Metrics.newTimer(new MetricName(processorId, this.getClass.getName.replace(".", "_"), "ingest_script_time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS)
+
+  Metrics.newGauge(new MetricName(processorId, this.getClass.getName.replace(".", "_"), "queue_length"), new Gauge[java.lang.Long] {
+    def value = try {
+      Redis.readPool.withClient(_.llen(messagesQueueKey)).getOrElse(0L)
+    } catch {
+      case e: Exception => -1L
+    }
+  })
 
-  /** Processor to pull messages off queue and make them available */
+  private val expiryBatchTime = Metrics.newTimer(new MetricName(processorId, this.getClass.getName.replace(".", "_"), "expiry_batch_time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS)
+
+  /** time between the oldest expiration drained in a batch and the drain */
+  private val expiryLag = Metrics.newHistogram(new MetricName(processorId, this.getClass.getName.replace(".", "_"), "expiry_lag"))
+
+  private val expiredMessages = Metrics.newMeter(new MetricName(processorId, this.getClass.getName.replace(".", "_"), "expired_messages"), "messages", TimeUnit.SECONDS)
+
+  private final val EXPIRY_DRAIN_INTERVAL_SECONDS = 10L
+  private final val EXPIRY_BATCH_SIZE = 500
+  private final val EXPIRY_MAX_BATCHES = 20
+  private final val LEGACY_CLEANUP_INTERVAL_HOURS = 2L
+
+  private final val MIN_BATCH_SIZE = 10
+
+  /** max time to block waiting for new messages, between leadership checks */
+  private final val QUEUE_WAIT_SECONDS = 1
+
+  /**
+   * Processor to pull messages off queue and make them available.
+   * Drains the queue in batches growing with the queue depth, blocks waiting for a queue signal when the queue is empty.
+   */
   private def insertMessages() {
     while (isLeader) {
       try {
-        Redis.writePool.withClient(processSingleBatchOfPendingMessages)
-        Thread.sleep(150)
+        if (Redis.writePool.withClient(processSingleBatchOfPendingMessages) == 0) {
+          Redis.writePool.withClient(waitForMessages)
+        }
       } catch {
         case e: Exception => {
           logger.warn(e)
@@ -98,64 +229,111 @@ class RedisMessageProcessor[BMF <: MessageField, BMT <: BackplaneMessage[BMF]](
     }
   }
 
-  private def processSingleBatchOfPendingMessages(redisClient: RedisClient) {
+  /**
+   * Blocks until a message is queued (see MessageProcessorDaoSupport.enqueue()), for at most QUEUE_WAIT_SECONDS.
+   * Consumes the (single) pending signal: its message was queued along with it, and is processed next.
+   */
+  private def waitForMessages(redisClient: RedisClient) {
+    redisClient.blpop[String, String](QUEUE_WAIT_SECONDS, messagesQueueSignalKey)
+  }
+
+  /**
+   * Prepares the writes for a batch of queued messages against the last ID read from redis and the reserved commit time
+   * (see MessageProcessorDaoSupport.reserveCommit()), then commits them, only if the last ID was not changed in the meantime
+   * (by another processor or a direct write) and the reservation was not lost.
+   *
+   * @return the number of messages processed (or discarded, to be retried, if the last ID changed or the reservation was lost)
+   */
+  private def processSingleBatchOfPendingMessages(redisClient: RedisClient): Int = {
     try {
-      // no writes go through if another node updates LAST_ID
-      redisClient.send("WATCH", dao.lastIdKey)(redisClient.asString)
-
-      val redisLastId = redisClient.get(dao.lastIdKey).getOrElse("")
-      val initialInsertionTimes: List[String] = Nil
-      // is there a better way to extract the insertionTimes from inside the pipeline loaner pattern?
-      var finalPostedIds: List[String] = Nil
-
-      val messagesToProcess: List[String] = redisClient.lrange(dao.messagesQueueKey, 0, 9).toIterable.flatten.flatten.toList
-      if ( ! messagesToProcess.isEmpty ) {
-        redisClient.pipeline( p => {
-          // pipelines are actually transactions (MULTI/EXEC) with scala-redis lib
-          val (latestId, postedIds) = messagesToProcess.foldLeft( (redisLastId, initialInsertionTimes) ) {
-            case ( (lastId, postedIdsCollector), messageString ) => {
-              val (backplaneMessage, postedId) = fixId(Message.deserialize(messageString), lastId)
-              processSingleMessage(backplaneMessage, postedId, postedIdsCollector, p)
-            }
+      val redisLastId = redisClient.get(lastIdKey).getOrElse("")
+
+      val depth = redisClient.llen(messagesQueueKey).getOrElse(0L)
+      queueDepth.update(depth)
+      val maxBatch = math.max(MIN_BATCH_SIZE, ConfigDAOs.serverConfigDao.oneServerConfig.map(_.messageProcessorMaxBatch).getOrElse(MIN_BATCH_SIZE))
+      val messagesToProcess: List[String] = redisClient.lrange(messagesQueueKey, 0, math.min(math.max(depth, MIN_BATCH_SIZE), maxBatch).toInt - 1).toIterable.flatten.flatten.toList
+      val pickedUp = System.currentTimeMillis
+      if (! messagesToProcess.isEmpty) {
+        batchSize.update(messagesToProcess.size)
+        val (minTime, reservation) = dao.reserveCommit(redisClient, shard)
+        batchIndexedFields = dao.secondaryIndexFields.intersect(dao.secondaryIndexableFields)
+        val writes = new BatchWrites
+        updateIndexedFields(writes, redisLastId)
+        val (latestId, postedIds, processed) = messagesToProcess.foldLeft( (redisLastId, List.empty[String], List.empty[BMT]) ) {
+          case ( (lastId, postedIdsCollector, processedCollector), messageString ) => {
+            val (backplaneMessage, postedId) = fixId(Message.deserialize(messageString), lastId, minTime)
+            val (msgId, updatedPostedIds) = processSingleMessage(backplaneMessage, postedId, postedIdsCollector, writes)
+            (msgId, updatedPostedIds, backplaneMessage :: processedCollector)
           }
-          p.set(dao.lastIdKey, latestId)
-          logger.info("%s processing transaction with %s message(s)".format(dao.processorId, postedIds.size))
-          finalPostedIds = postedIds
-        })
-          .filter(! _.isEmpty).getOrElse(throw new DaoException("empty result received for message insertion transaction"))
+        }
+        logDebug("%s processing transaction with %s message(s)".format(processorId, postedIds.size))
 
-        val now = System.currentTimeMillis
-        for {
-          postedId <- finalPostedIds
-          diff = now - BackplaneMessage.timeFromId(postedId)
-        } {
-          if (diff < 0 || diff > 2880000)
-            logger.warn("%s: message post time vs message processor insertion time diff is bizarre for original id: %s, delta from now: %s ".format(dao.processorId, postedId, diff))
-          else
-            timeInQueue.update(diff)
+        val context = ingestTime.time()
+        val committed = try {
+          // committed batches are published on the shard's notifications channel, see MessageNotifier
+          dao.commit(redisClient, shard, redisLastId, reservation, latestId, messagesToProcess.size, processed.reverse, writes)
+        } finally {
+          context.stop()
+        }
+
+        if (! committed) {
+          logger.warn("%s last ID changed by another writer or commit reservation lost, discarded batch of %s message(s)".format(processorId, postedIds.size))
+        } else {
+          indexedFields = Some(batchIndexedFields)
+
+          val now = System.currentTimeMillis
+          for {
+            postedId <- postedIds
+            postedTime = BackplaneMessage.timeFromId(postedId)
+            diff = now - postedTime
+          } {
+            if (diff < 0 || diff > 2880000)
+              logger.warn("%s: message post time vs message processor insertion time diff is bizarre for original id: %s, delta from now: %s ".format(processorId, postedId, diff))
+            else {
+              timeInQueue.update(math.max(0, pickedUp - postedTime))
+              dao.visibleLatency.update(diff)
+            }
+          }
+          logDebug("%s flushed %s messages".format(processorId, postedIds.size))
         }
-        logger.info("%s flushed %s messages".format(dao.processorId, finalPostedIds.size))
       }
+      messagesToProcess.size
 
     } catch {
       case e: Exception => {
-        logger.warn("%s error while trying to process message batch: %s".format(dao.processorId, ExceptionUtils.getRootCauseMessage(e)), BackplaneConfig.getDebugException(e))
+        logger.warn("%s error while trying to process message batch: %s".format(processorId, ExceptionUtils.getRootCauseMessage(e)), BackplaneConfig.getDebugException(e))
         throw e
       }
     }
   }
 
+  /**
+   * Secondary indexes are usable by readers only for messages after their start time:
+   * the shard's start time is reset when a field starts being indexed (or is not known to have been indexed without gaps),
+   * and removed when it stops being indexed.
+   */
+  private def updateIndexedFields(writes: BatchWrites, lastId: String) {
+    (indexedFields.getOrElse(dao.secondaryIndexableFields) -- batchIndexedFields).foreach(field =>
+      writes.hdel(dao.fieldIndexStartKey(field), shard))
+    (batchIndexedFields -- indexedFields.getOrElse(Set.empty)).foreach(field =>
+      writes.hset(dao.fieldIndexStartKey(field), shard, BackplaneMessage.timeFromId(lastId)))
+  }
+
   private final val ID_FIELD_NAME = dao.idField.name
 
-  private def fixId(messageData: Map[String,String], lastId: String): (BMT, String) = {
+  /**
+   * Messages are re-numbered if their ID is before lastId (see isBefore()) or their time is before minTime,
+   * i.e. not after the last commit time: readers may have been handed out (time based) since cursors up to it.
+   */
+  private def fixId(messageData: Map[String,String], lastId: String, minTime: Long): (BMT, String) = {
     val postedId = messageData.get(ID_FIELD_NAME).getOrElse {
-      logger.warn("%s: message was not assigned an ID when it was posted, generating it at queue processing time: %s".format(dao.processorId, messageData.mkString("\n")))
-      BackplaneMessage.generateMessageId(new Date)
+      logger.warn("%s: message was not assigned an ID when it was posted, generating it at queue processing time: %s".format(processorId, messageData.mkString("\n")))
+      dao.newMessageId(System.currentTimeMillis)
     }
     val msg = dao.mpInstantiate( messageData.map {
-      case (ID_FIELD_NAME, posted) if BackplaneMessage.dateFromId(posted).exists(_.getTime < BackplaneMessage.timeFromId(lastId)) => {
-        val newId = BackplaneMessage.generateMessageId(new Date(BackplaneMessage.timeFromId(lastId) + 1))
-        logger.warn("%s: message id %s was posted before latest id %s, fixed to: %s".format(dao.processorId, posted, lastId, newId))
+      case (ID_FIELD_NAME, posted) if isBefore(posted, lastId) || BackplaneMessage.timeFromId(posted) < minTime => {
+        val newId = dao.newMessageId(math.max(BackplaneMessage.timeFromId(lastId) + 1, minTime))
+        logger.warn("%s: message id %s was posted before latest id %s, fixed to: %s".format(processorId, posted, lastId, newId))
         ID_FIELD_NAME -> newId
       }
       case other => other
@@ -164,29 +342,97 @@ class RedisMessageProcessor[BMF <: MessageField, BMT <: BackplaneMessage[BMF]](
     (msg, postedId)
   }
 
+  /** compact IDs (unique per node and sequence) must be after the last ID, ISO8601 prefixed IDs may have the same timestamp */
+  private def isBefore(postedId: String, lastId: String): Boolean =
+    if (BackplaneMessage.isCompactId(postedId)) postedId <= lastId
+    else BackplaneMessage.dateFromId(postedId).exists(_.getTime < BackplaneMessage.timeFromId(lastId))
+
   /**
-   * Store one message to redis, as part of the supplied redis pipeline / transaction.
-   * The following associated redis data structures are created or updated:
-   * - key = dao.itemKey(msgId), value = serialized message string
-   * - key = dao.messagesKey, add sorted set entry, score = msg time, value = msg metadata
-   * - key = dao.busKey(bus), add sorted set entry, score = msg time, value = msgId
-   * - key = dao.channelKey(channel), add sorted set entry, score = msg time, value = msgId
+   * Adds the writes storing one message to redis to the supplied batch, see MessageProcessorDaoSupport.addMessageWrites().
+   * The message is removed from the queue when the batch is committed.
    *
    * @return pair of:
    *         last, possibly updated, id
    *         old message id prepended to the list of supplied insertion times
    */
-  protected def processSingleMessage(backplaneMessage: BMT, postedId: String, insertionTimes: List[String], redisClient: RedisCommand): (String,List[String]) = {
-    val msgId = backplaneMessage.id
-    val messageTime = BackplaneMessage.timeFromId(msgId)
-    redisClient.hmset(dao.itemKey(msgId), backplaneMessage)
-    redisClient.expire(dao.itemKey(msgId), DateTimeUtils.getExpireSeconds(msgId, backplaneMessage.expiration, backplaneMessage.sticky))
-    redisClient.zadd(dao.channelKey(backplaneMessage.channel), messageTime, msgId)
-    redisClient.zadd(dao.busKey(backplaneMessage.bus), messageTime, msgId)
-    redisClient.zadd(dao.messagesKey, messageTime, metaData(backplaneMessage.bus, backplaneMessage.channel, msgId, backplaneMessage.expiration))
-    redisClient.lpop(dao.messagesQueueKey)
-    logger.info("%s pipelined message: %s -> %s".format(dao.processorId, postedId, msgId))
-    (msgId, postedId :: insertionTimes)
+  protected def processSingleMessage(backplaneMessage: BMT, postedId: String, insertionTimes: List[String], writes: BatchWrites): (String,List[String]) = {
+    dao.addMessageWrites(backplaneMessage, batchIndexedFields, writes)
+    logDebug("%s pipelined message: %s -> %s".format(processorId, postedId, backplaneMessage.id))
+    (backplaneMessage.id, postedId :: insertionTimes)
   }
 
 }
+
+object RedisMessageProcessor {
+
+  /**
+   * Removes a batch of expired messages: their items, bus / channel / secondary / messages index entries and expiry index entries.
+   * Expiry index entries are the message metadata, optionally followed by the message's secondary index keys,
+   * see MessageProcessorDaoSupport.expiryEntry().
+   *
+   * KEYS: expiry index key, messages (metadata) index key
+   * ARGV: current time, batch size, item key prefix, bus index key prefix, channel index key prefix
+   * returns: the number of messages removed, the oldest removed expiration time (current time if none)
+   */
+  private[redis] val EXPIRY_DRAIN_SCRIPT = new RedisScript("message_expiry_drain", """
+    local expired = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'WITHSCORES', 'LIMIT', 0, tonumber(ARGV[2]))
+    for i = 1, #expired, 2 do
+      local entry = expired[i]
+      local metaData = entry
+      local indexKeysStart = string.find(entry, '\n', 1, true)
+      if indexKeysStart then
+        metaData = string.sub(entry, 1, indexKeysStart - 1)
+      end
+      local bus, channel, id = string.match(metaData, '^(%S+) (%S+) (%S+)')
+      if id then
+        redis.call('DEL', ARGV[3] .. id)
+        redis.call('ZREM', ARGV[4] .. bus, id)
+        redis.call('ZREM', ARGV[5] .. channel, id)
+        local pos = indexKeysStart and indexKeysStart + 1 or #entry + 1
+        while pos <= #entry do
+          local colon = string.find(entry, ':', pos, true)
+          local length = tonumber(string.sub(entry, pos, colon - 1))
+          redis.call('ZREM', string.sub(entry, colon + 1, colon + length), id)
+          pos = colon + length + 1
+        end
+      end
+      redis.call('ZREM', KEYS[2], metaData)
+      redis.call('ZREM', KEYS[1], entry)
+    end
+    return { tostring(#expired / 2), expired[2] or ARGV[1] }
+  """)
+
+  /**
+   * Removes a batch of messages indexed before the expiry index whose items expired: their bus / channel / messages index entries.
+   * Bus and channel indexes of the batch without an expiration are set to expire after the index retention time.
+   *
+   * KEYS: messages (metadata) index key
+   * ARGV: min score, max score, batch size, item key prefix, bus index key prefix, channel index key prefix, index retention seconds
+   * returns: the number of messages index entries in the batch, the number of them still live, the batch's last score ('' if none)
+   */
+  private[redis] val PRE_EXPIRY_INDEX_SWEEP_SCRIPT = new RedisScript("message_pre_expiry_index_sweep", """
+    local entries = redis.call('ZRANGEBYSCORE', KEYS[1], ARGV[1], ARGV[2], 'WITHSCORES', 'LIMIT', 0, tonumber(ARGV[3]))
+    local live = 0
+    for i = 1, #entries, 2 do
+      local bus, channel, id = string.match(entries[i], '^(%S+) (%S+) (%S+)')
+      if id then
+        local indexKeys = { ARGV[5] .. bus, ARGV[6] .. channel }
+        if redis.call('EXISTS', ARGV[4] .. id) == 1 then
+          live = live + 1
+        else
+          for _, indexKey in ipairs(indexKeys) do
+            redis.call('ZREM', indexKey, id)
+          end
+          redis.call('ZREM', KEYS[1], entries[i])
+        end
+        for _, indexKey in ipairs(indexKeys) do
+          if redis.call('TTL', indexKey) == -1 then
+            redis.call('EXPIRE', indexKey, ARGV[7])
+          end
+        end
+      end
+    end
+    return { tostring(#entries / 2), tostring(live), entries[#entries] or '' }
+  """)
+
+}
@@ -0,0 +1,38 @@
+package com.janrain.backplane.dao.redis
+
+import com.redis.RedisClient
+import com.janrain.util.Loggable
+import com.janrain.backplane.dao.DaoException
+
+/**
+ * Lua script executed by SHA1 (EVALSHA), loaded on demand on the redis server the client is connected to.
+ */
+class RedisScript(val name: String, val luaCode: String) extends Loggable {
+
+  /**
+   * @return the script's (flat, multi-bulk) result
+   */
+  def evalMulti(client: RedisClient, keys: List[Any], args: List[Any]): Option[List[Option[String]]] = {
+    val scriptSha = sha.getOrElse(load(client))
+    try {
+      client.evalMultiSHA[String](scriptSha, keys, args)
+    } catch {
+      case e: Exception if Option(e.getMessage).exists(_.contains(NO_SCRIPT)) =>
+        // script cache flushed, or not yet loaded on this (read) server
+        client.evalMultiSHA[String](load(client), keys, args)
+    }
+  }
+
+  // - PRIVATE
+
+  private final val NO_SCRIPT = "NOSCRIPT"
+
+  @volatile private var sha: Option[String] = None
+
+  private def load(client: RedisClient): String = {
+    val loaded = client.scriptLoad(luaCode).getOrElse(throw new DaoException("error loading redis script: " + name))
+    if (sha != Some(loaded)) logger.info("loaded redis script %s: %s".format(name, loaded))
+    sha = Some(loaded)
+    loaded
+  }
+}
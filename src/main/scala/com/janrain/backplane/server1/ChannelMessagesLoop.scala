@@ -0,0 +1,73 @@
+package com.janrain.backplane.server1
+
+import scala.annotation.tailrec
+import java.util.Date
+import java.util.concurrent.{TimeUnit, Semaphore}
+import com.janrain.backplane.dao.redis.MessageNotifier
+import com.janrain.backplane.server1.dao.BP1DAOs
+import com.janrain.backplane.server1.model.Backplane1Message
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.MetricName
+
+/**
+ * Blocking read of a Backplane 1 channel: waits for up to sleepUntil for messages to become available.
+ *
+ * The wait is woken up by the v1 message notifier when messages are committed to the channel,
+ * the channel is then re-read from the DAO (which may still compare against the legacy DAO);
+ * the DAO is re-checked after at most sleepMillis only if the notifications subscription is down.
+ *
+ * Each blocked read holds a request thread: at most MAX_BLOCKED_READS reads block at once on a node,
+ * further reads return the channel's current messages without waiting.
+ */
+object ChannelMessagesLoop {
+
+  def scalaObject = this
+
+  def apply(channel: String, since: String, sticky: String, sleepMillis: Long, sleepUntil: Date): List[Backplane1Message] = {
+    if (! blockedReads.tryAcquire()) {
+      unblockedReads.mark()
+      BP1DAOs.messageDao.retrieveMessagesByChannel(channel, since, sticky)
+    } else try {
+      val wakeUp = new Semaphore(0)
+      // register before reading the channel, so that no message is missed in between
+      val registration = BP1DAOs.messageNotifier.register(List(MessageNotifier.channelKey(channel))) { wakeUp.release() }
+      try {
+        waitLoop(registration, wakeUp, channel, since, sticky, sleepMillis, sleepUntil)
+      } finally {
+        registration.cancel()
+      }
+    } finally {
+      blockedReads.release()
+    }
+  }
+
+  // - PRIVATE
+
+  private final val MAX_BLOCKED_READS = 50
+
+  private val blockedReads = new Semaphore(MAX_BLOCKED_READS)
+
+  private val unblockedReads = Metrics.newMeter(
+    new MetricName("v1", ChannelMessagesLoop.getClass.getName.replace(".", "_").replace("$", ""), "unblocked_channel_reads"), "reads", TimeUnit.SECONDS)
+
+  @tailrec
+  private def waitLoop( registration: BP1DAOs.messageNotifier.Registration, wakeUp: Semaphore,
+                        channel: String, since: String, sticky: String, sleepMillis: Long, sleepUntil: Date): List[Backplane1Message] = {
+    val messages = BP1DAOs.messageDao.retrieveMessagesByChannel(channel, since, sticky)
+    val remainingMillis = sleepUntil.getTime - System.currentTimeMillis
+    if ( ! messages.isEmpty || remainingMillis <= 0) {
+      messages
+    } else {
+      try {
+        wakeUp.tryAcquire(
+          if (BP1DAOs.messageNotifier.isConnected) remainingMillis else math.min(sleepMillis, remainingMillis),
+          TimeUnit.MILLISECONDS)
+      } catch {
+        case e: InterruptedException => // ignore
+      }
+      wakeUp.drainPermits()
+      registration.drain() // the channel is re-read on each wake up
+      waitLoop(registration, wakeUp, channel, since, sticky, sleepMillis, sleepUntil)
+    }
+  }
+}
@@ -1,6 +1,6 @@
 package com.janrain.backplane.server1.dao
 
-import com.janrain.backplane.dao.redis.RedisMessageDao
+import com.janrain.backplane.dao.redis.{MessageNotifier, MessageProcessorDaoSupport, RedisMessageDao}
 import com.janrain.backplane.server1.model._
 import com.janrain.backplane.dao.{LegacyDaoForwarder, PasswordHasherDao}
 import com.janrain.backplane.server1.dao.redis.RedisBackplane1MessageDao
@@ -38,10 +38,10 @@ object BP1DAOs extends Loggable {
     val legacyDao = com.janrain.backplane.server.redisdao.BP1DAOs.getBusDao
   }
 
-  //type BackplaneMessageDaoWithProcessor = Backplane1MessageDao with MessageProcessorDaoSupport[Backplane1MessageFields.EnumVal,Backplane1Message]
+  type BackplaneMessageDaoWithProcessor = Backplane1MessageDao with MessageProcessorDaoSupport[Backplane1MessageFields.EnumVal,Backplane1Message]
 
   // todo: change RedisBackplane1MessageDao to object after legacy dao is removed
-  val messageDao: Backplane1MessageDao = new RedisBackplane1MessageDao {
+  val messageDao: BackplaneMessageDaoWithProcessor = new RedisBackplane1MessageDao {
 
     val legacyMessageDao = com.janrain.backplane.server.redisdao.BP1DAOs.getMessageDao
 
@@ -90,6 +90,8 @@ object BP1DAOs extends Loggable {
       .exists(_ == true.toString)
   }
 
+  val messageNotifier = new MessageNotifier(messageDao)
+
   def asScalaImmutableMap(javaMap: java.util.Map[String,String]) = javaMap.toMap
 
 }
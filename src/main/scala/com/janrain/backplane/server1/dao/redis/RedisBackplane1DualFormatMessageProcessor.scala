@@ -1,9 +1,9 @@
 package com.janrain.backplane.server1.dao.redis
 
-import com.janrain.backplane.dao.redis.{Redis, MessageProcessorDaoSupport, RedisMessageProcessor}
+import com.janrain.backplane.dao.redis.{BatchWrites, Redis, MessageProcessorDaoSupport, RedisMessageProcessor}
 import com.janrain.backplane.server1.model.{Backplane1MessageFields, Backplane1Message}
 import com.janrain.backplane.dao.Dao
-import com.redis.{RedisClient, RedisCommand}
+import com.redis.RedisClient
 import com.janrain.backplane.common.model.BackplaneMessage
 import com.janrain.backplane.common.DateTimeUtils
 import com.janrain.util.Loggable
@@ -21,49 +21,55 @@ import org.apache.commons.lang.SerializationUtils
 class RedisBackplane1DualFormatMessageProcessor(dao: Dao[Backplane1Message] with MessageProcessorDaoSupport[Backplane1MessageFields.EnumVal,Backplane1Message])
   extends RedisMessageProcessor(dao) with Loggable {
   /**
-   * Store one message to redis, as part of the supplied redis pipeline / transaction.
+   * Adds the writes storing one message to redis to the supplied batch.
    * The following associated redis data structures are created or updated:
    * - key = msgId, value = serialized message string
    * - key = bp2messages, add sorted set entry, score = msg time, value = msg metadata
+   * - key = expiry index, add sorted set entry, score = msg expiration time, value = msg metadata
    * - key = bp2bus:<bus>, add sorted set entry, score = msg time, value = msgId
    * - key = bp2channel:<channel>, add sorted set entry, score = msg time, value = msgId
+   * - messages, bus and channel indexes, new and legacy format, are bounded, see MessageProcessorDaoSupport.boundIndex()
    *
    * @return pair of:
    *         last, possibly updated, id
    *         old message id prepended to the list of supplied insertion times
    */
-  override protected def processSingleMessage(backplaneMessage: Backplane1Message, postedId: String, insertionTimes: List[String], redisClient: RedisCommand): (String,List[String]) = {
+  override protected def processSingleMessage(backplaneMessage: Backplane1Message, postedId: String, insertionTimes: List[String], writes: BatchWrites): (String,List[String]) = {
 
     val msgId = backplaneMessage.id
     val messageTime = BackplaneMessage.timeFromId(msgId)
     val expireSeconds = DateTimeUtils.getExpireSeconds(msgId, backplaneMessage.expiration, backplaneMessage.sticky)
 
     // new format
-    redisClient.hmset(dao.itemKey(msgId), backplaneMessage)
-    redisClient.expire(dao.itemKey(msgId), expireSeconds)
-    redisClient.zadd(dao.channelKey(backplaneMessage.channel), messageTime, msgId)
-    redisClient.zadd(dao.busKey(backplaneMessage.bus), messageTime, msgId)
+    writes.hmset(dao.itemKey(msgId), backplaneMessage)
+    writes.expire(dao.itemKey(msgId), expireSeconds)
+    writes.zadd(dao.channelKey(backplaneMessage.channel), messageTime, msgId)
+    dao.boundIndex(dao.channelKey(backplaneMessage.channel), messageTime, writes)
+    writes.zadd(dao.busKey(backplaneMessage.bus), messageTime, msgId)
+    dao.boundIndex(dao.busKey(backplaneMessage.bus), messageTime, writes)
     val metaDataNew = "%s %s %s %s".format(backplaneMessage.bus, backplaneMessage.channel, msgId, backplaneMessage.expiration)
-    redisClient.zadd(dao.messagesKey, messageTime, metaDataNew)
+    writes.zadd(dao.messagesKey, messageTime, metaDataNew)
+    dao.boundIndex(dao.messagesKey, messageTime, writes)
+    writes.zadd(dao.expiryKey, System.currentTimeMillis + expireSeconds * 1000L, metaDataNew)
 
     // legacy format
-    redisClient.setex(RedisBackplaneMessageDAO.getKey(msgId), expireSeconds, SerializationUtils.serialize(backplaneMessage.asLegacy))
-    redisClient.rpush(RedisBackplaneMessageDAO.getChannelKey(backplaneMessage.channel), msgId.getBytes)
-    redisClient.zadd(RedisBackplaneMessageDAO.getBusKey(backplaneMessage.bus), messageTime, msgId.getBytes)
-    redisClient.zadd(RedisBackplaneMessageDAO.V1_MESSAGES.getBytes, messageTime, legacyMetaData(backplaneMessage.bus, backplaneMessage.channel, msgId).getBytes)
+    writes.setex(RedisBackplaneMessageDAO.getKey(msgId), expireSeconds, SerializationUtils.serialize(backplaneMessage.asLegacy))
+    writes.rpush(RedisBackplaneMessageDAO.getChannelKey(backplaneMessage.channel), msgId.getBytes)
+    writes.expire(RedisBackplaneMessageDAO.getChannelKey(backplaneMessage.channel), MessageProcessorDaoSupport.INDEX_RETENTION_SECONDS)
+    writes.zadd(RedisBackplaneMessageDAO.getBusKey(backplaneMessage.bus), messageTime, msgId.getBytes)
+    dao.boundIndex(RedisBackplaneMessageDAO.getBusKey(backplaneMessage.bus), messageTime, writes)
+    writes.zadd(RedisBackplaneMessageDAO.V1_MESSAGES.getBytes, messageTime, legacyMetaData(backplaneMessage.bus, backplaneMessage.channel, msgId).getBytes)
 
-    redisClient.lpop(dao.messagesQueueKey)
-    logger.info("%s pipelined message: %s -> (%s, %s)".format(dao.processorId, postedId, dao.itemKey(msgId), RedisBackplaneMessageDAO.getKey(msgId)))
+    logDebug("%s pipelined message: %s -> (%s, %s)".format(processorId, postedId, dao.itemKey(msgId), RedisBackplaneMessageDAO.getKey(msgId)))
 
     (msgId, postedId :: insertionTimes)
 
   }
 
-  override protected def deleteExpiredMessages() {
-    // new format cleanup
-    super.deleteExpiredMessages()
+  /** the new format is expired through the expiry index, see RedisMessageProcessor.drainExpiredMessages() */
+  override protected def legacyCleanup: Option[() => Unit] = Some(deleteExpiredLegacyMessages _)
 
-    // legacy format cleanup
+  private def deleteExpiredLegacyMessages() {
     val allMsgMetas: Option[List[String]] =
       Redis.readPool.withClient(_.zrangebyscore(RedisBackplaneMessageDAO.V1_MESSAGES.getBytes, 0, minInclusive = true, Double.MaxValue, maxInclusive = true, None, RedisClient.ASC))
 
@@ -18,7 +18,13 @@ class RedisBackplane1MessageDao extends RedisMessageDao[Backplane1Message]("bp1M
   protected def instantiate(data: Map[_, _]) = new Backplane1Message(data.map(kv => kv._1.toString -> kv._2.toString))
 
   override def store(item: Backplane1Message) {
-    Redis.writePool.withClient(_.rpush(messagesQueueKey, item.serialize))
+    enqueue(item)
+  }
+
+  /** queues all of the messages, or none if the message processor queue is full, see enqueue() */
+  override def store(items: Backplane1Message*): List[(String, Boolean)] = {
+    enqueue(items.toList)
+    items.map(_.id -> true).toList
   }
 
   override def messageCount(channel: String): Long = Redis.readPool.withClient(_.zcard(channelKey(channel))).getOrElse(0)
@@ -43,7 +43,8 @@ object BusConfig1 {
   private[model] final val RETENTION_MIN_SECONDS = 60L
   private[model] final val RETENTION_MAX_SECONDS = 604800L        // one week
   private[model] final val RETENTION_STICKY_MIN_SECONDS = 28800L  // eight hours
-  private[model] final val RETENTION_STICKY_MAX_SECONDS = 604800L // one week
+  /** longest bus retention, sticky messages included; also bounds the message indexes, see MessageProcessorDaoSupport.boundIndex() */
+  final val RETENTION_STICKY_MAX_SECONDS = 604800L // one week
 
   def fromLegacy(javaData: java.util.Map[String, String]): Map[String,String] = {
     val scalaMap = javaData.toMap
@@ -3,11 +3,17 @@ package com.janrain.backplane.server2
 import scala.annotation.tailrec
 import com.janrain.backplane2.server.Scope
 import java.util.Date
-import com.janrain.backplane.server2.model.Backplane2Message
+import com.janrain.backplane.server2.model.{Backplane2MessageFields, Backplane2Message}
 import org.apache.commons.lang.StringUtils
 import java.util
-import com.janrain.backplane.server2.dao.BP2DAOs
+import com.janrain.backplane.server2.dao.{Backplane2MessageDao, BP2DAOs}
+import com.janrain.backplane.common.model.BackplaneMessage
 import scala.collection.JavaConversions._
+import java.util.concurrent.{ScheduledFuture, Semaphore, Executors, TimeUnit}
+import javax.servlet.http.HttpServletRequest
+import org.eclipse.jetty.continuation.{ContinuationListener, Continuation, ContinuationSupport}
+import com.janrain.backplane.config.BackplaneConfig
+import com.janrain.backplane.dao.redis.MessageNotifier
 
 /**
  * @author Johnny Bufu
@@ -22,31 +28,250 @@ object MessageResponse {
     .tupled(messageLoop(scope, lastMessageId, sleepMillis, sleepUntil))
   }
 
-  @tailrec
+  /**
+   * Retrieves messages matching the scope, waiting for up to sleepUntil if none are available.
+   *
+   * While waiting, new messages for the scope's buses/channels are delivered by the node's message notifier
+   * and returned without querying the store again, if the previous store check was current (see isCurrent());
+   * the store is re-checked otherwise, if notifications were missed,
+   * or after at most sleepMillis if the notifications subscription is down or the store check was not current.
+   */
   def messageLoop(scope: Scope, lastMessageId: String, sleepMillis: Long, sleepUntil: Date): (List[Backplane2Message], Boolean, Option[String]) = {
-    val (messages, isMore, lastIdChecked) = BP2DAOs.messageDao.retrieveMessagesPerScope(scope, lastMessageId)
-    if ( ! messages.isEmpty || new Date().after(sleepUntil)) {
-      (messages, isMore, lastIdChecked)
-    } else {
-      try {
-        Thread.sleep(sleepMillis)
-      } catch {
-        case e: InterruptedException => // ignore
-      }
-      messageLoop(scope, lastIdChecked.getOrElse(""), sleepMillis, sleepUntil)
+    val wakeUp = new Semaphore(0)
+    // register before checking the store, so that no message is missed in between
+    val registration = BP2DAOs.messageNotifier.register(notificationKeys(scope)) { wakeUp.release() }
+    val registeredAt = System.nanoTime
+    try {
+      waitLoop(registration, registeredAt, wakeUp, scope, lastMessageId, checkStore = true, current = false, sleepMillis, sleepUntil)
+    } finally {
+      registration.cancel()
+    }
+  }
+
+  /**
+   * Non-blocking variant of apply(): instead of holding the request thread while waiting for messages,
+   * the request is suspended and redispatched when new messages for the scope are delivered by the notifier,
+   * or when sleepUntil is reached.
+   *
+   * The wait state (deadline, last message ID checked, notifier registration) is kept as a request attribute
+   * across redispatches, and released when the request completes, however the redispatched request ends.
+   *
+   * @return the response, or None if the request was suspended, in which case the caller must not write a response
+   */
+  def async( request: HttpServletRequest, serverName: String, privileged: Boolean,
+             scope: Scope, lastMessageId: String, sleepMillis: Long, sleepUntil: Date): Option[(java.util.Map[String,Object], List[Backplane2Message])] = {
+    val continuation = ContinuationSupport.getContinuation(request)
+    val (poll, initial) = Option(request.getAttribute(PARKED_POLL_ATTRIBUTE).asInstanceOf[ParkedPoll]) match {
+      case Some(parked) => (parked, false)
+      case None =>
+        val newPoll = new ParkedPoll(continuation, lastMessageId, sleepUntil)
+        request.setAttribute(PARKED_POLL_ATTRIBUTE, newPoll)
+        (newPoll, true)
     }
+    val checkStore = initial || ! BP2DAOs.messageNotifier.isConnected || ! poll.current
+    asyncLoop(poll, scope, sleepMillis, continuation.isExpired, checkStore).map((response(serverName, privileged) _).tupled)
+  }
+
+  /** @return the message notification keys that may signal new messages for the provided scope */
+  def notificationKeys(scope: Scope): List[String] = {
+    val channels = Option(scope.getScopeFieldValues(Backplane2MessageFields.CHANNEL)).map(_.toList).getOrElse(Nil)
+    val buses = Option(scope.getScopeFieldValues(Backplane2MessageFields.BUS)).map(_.toList).getOrElse(Nil)
+    if (! channels.isEmpty) channels.map(MessageNotifier.channelKey)
+    else if (! buses.isEmpty) buses.map(MessageNotifier.busKey)
+    else List(MessageNotifier.ANY)
+  }
+
+  /**
+   * @return the messages delivered to the registration since the last call that match the scope and are newer than since,
+   *         in ID order (feeds of different processor shards interleave), or None if notifications were missed
+   *         and the store needs to be checked instead
+   */
+  def delivered(registration: BP2DAOs.messageNotifier.Registration, scope: Scope, since: String): Option[List[Backplane2Message]] = {
+    val sinceTime = BackplaneMessage.timeFromId(since)
+    registration.drain().map(_.filter(msg => BackplaneMessage.timeFromId(msg.id) > sinceTime && scope.isMessageInScope(msg)).sortBy(_.id))
+  }
+
+  /**
+   * @return true if messages delivered by the notifier after a store check can be returned without checking the store again:
+   *         the store check's last ID is not before the notifier's feed position read before the check;
+   *         otherwise (e.g. the check was served by a lagging replica) messages notified before the check may be missing
+   *         from both the check and the deliveries
+   */
+  def isCurrent(lastIdChecked: Option[String], feedPosition: Option[String]): Boolean =
+    feedPosition.forall(position => lastIdChecked.exists(checked =>
+      BackplaneMessage.timeFromId(checked) >= BackplaneMessage.timeFromId(position)))
+
+  /** @return the (messages, more, last ID) response triple for messages delivered by the notifier */
+  def frame(messages: List[Backplane2Message]): (List[Backplane2Message], Boolean, Option[String]) = {
+    val inFrame = messages.take(Backplane2MessageDao.MAX_MSGS_IN_FRAME)
+    (inFrame, messages.size > inFrame.size, Some(inFrame.last.id))
   }
 
   def response( serverName: String, privileged: Boolean )
               ( messages: List[Backplane2Message], more: Boolean, lastMessageId: Option[String] ) = {
-    // todo: proper, not abandonware json library with support for scala types
-    val frames = messages.map(_.asFrame(serverName, privileged))
     val lastMessageIdParam = lastMessageId.map(last => if (!StringUtils.isBlank(last)) "?since=" + last else "").getOrElse("")
     val messagesResponse: java.util.Map[String,Object] = new util.HashMap[String, Object]
     messagesResponse.put("nextURL", "https://" + serverName + "/v2/messages" + lastMessageIdParam)
     messagesResponse.put("moreMessages", java.lang.Boolean.valueOf(more))
-    messagesResponse.put("messages", seqAsJavaList(frames.map(mapAsJavaMap)))
+    messagesResponse.put("messages", RenderedFrames(messages, serverName, privileged))
     (messagesResponse, messages)
   }
 
+  // - PRIVATE
+
+  private final val PARKED_POLL_ATTRIBUTE = classOf[ParkedPoll].getName
+
+  private val recheckScheduler = Executors.newScheduledThreadPool(1)
+
+  BackplaneConfig.addToBackgroundServices("v2_messages_recheck", recheckScheduler)
+
+  @tailrec
+  private def waitLoop( registration: BP2DAOs.messageNotifier.Registration, registeredAt: Long, wakeUp: Semaphore, scope: Scope, since: String,
+                        checkStore: Boolean, current: Boolean, sleepMillis: Long, sleepUntil: Date): (List[Backplane2Message], Boolean, Option[String]) = {
+    val feedPosition = BP2DAOs.messageNotifier.lastFeedId
+    val (messages, isMore, lastIdChecked) =
+      if (checkStore) BP2DAOs.messageDao.retrieveMessagesPerScope(scope, since, registeredAt)
+      else (Nil, false, Some(since))
+    val remainingMillis = sleepUntil.getTime - System.currentTimeMillis
+    if ( ! messages.isEmpty || remainingMillis <= 0) {
+      (messages, isMore, lastIdChecked)
+    } else {
+      val lastId = lastIdChecked.getOrElse("")
+      val isCurrentCheck = if (checkStore) isCurrent(lastIdChecked, feedPosition) else current
+      val connected = BP2DAOs.messageNotifier.isConnected
+      try {
+        wakeUp.tryAcquire(if (connected && isCurrentCheck) remainingMillis else math.min(sleepMillis, remainingMillis), TimeUnit.MILLISECONDS)
+      } catch {
+        case e: InterruptedException => // ignore
+      }
+      wakeUp.drainPermits()
+      delivered(registration, scope, lastId) match {
+        case Some(Nil) => waitLoop(registration, registeredAt, wakeUp, scope, lastId, ! connected || ! isCurrentCheck, isCurrentCheck, sleepMillis, sleepUntil)
+        case Some(found) if isCurrentCheck => frame(found)
+        case _ => waitLoop(registration, registeredAt, wakeUp, scope, lastId, checkStore = true, isCurrentCheck, sleepMillis, sleepUntil)
+      }
+    }
+  }
+
+  @tailrec
+  private def asyncLoop(poll: ParkedPoll, scope: Scope, sleepMillis: Long, expired: Boolean, checkStore: Boolean): Option[(List[Backplane2Message], Boolean, Option[String])] = {
+    poll.watch(notificationKeys(scope))
+    val feedPosition = BP2DAOs.messageNotifier.lastFeedId
+    val (messages, isMore, lastIdChecked) = try {
+      // the store is checked first when required, deliveries not newer than the checked messages are dropped later
+      (if (checkStore) None else poll.delivered(scope)) match {
+        case Some(Nil) => (Nil, false, Some(poll.lastMessageId))
+        case Some(found) if poll.current => frame(found)
+        case _ =>
+          val checked = BP2DAOs.messageDao.retrieveMessagesPerScope(scope, poll.lastMessageId, poll.registeredAt)
+          poll.current = isCurrent(checked._3, feedPosition)
+          checked
+      }
+    } catch {
+      case e: Exception =>
+        poll.cancel()
+        throw e
+    }
+    val remainingMillis = poll.sleepUntil.getTime - System.currentTimeMillis
+    if ( ! messages.isEmpty || expired || remainingMillis <= 0) {
+      poll.cancel()
+      Some((messages, isMore, lastIdChecked))
+    } else {
+      poll.lastMessageId = lastIdChecked.getOrElse("")
+      val connected = BP2DAOs.messageNotifier.isConnected
+      val recheckMillis = if (connected && poll.current) None else Some(math.min(sleepMillis, remainingMillis))
+      if (poll.park(remainingMillis, recheckMillis)) None
+      else asyncLoop(poll, scope, sleepMillis, expired, ! connected || ! poll.current) // notified while checking, don't suspend
+    }
+  }
+
+  /**
+   * Wait state of a suspended messages request.
+   * The continuation is resumed only after it was suspended, and at most once per suspend.
+   * The notifier registration and the pending recheck are cancelled when the request completes.
+   */
+  private class ParkedPoll(continuation: Continuation, var lastMessageId: String, val sleepUntil: Date) {
+
+    /** true if the last store check was current, see MessageResponse.isCurrent() */
+    var current = false
+
+    /** System.nanoTime after the notifier registration */
+    var registeredAt = 0L
+
+    private var registration: Option[BP2DAOs.messageNotifier.Registration] = None
+    private var recheck: Option[ScheduledFuture[_]] = None
+    private var notified = false
+    private var suspended = false
+
+    continuation.addContinuationListener(new ContinuationListener {
+      override def onComplete(c: Continuation) {
+        cancel()
+      }
+      override def onTimeout(c: Continuation) {
+        cancelRecheck()
+      }
+    })
+
+    /** registers for notifications on the first call, keeping the registration across redispatches */
+    def watch(keys: Iterable[String]) {
+      synchronized {
+        if (registration.isEmpty) {
+          registration = Some(BP2DAOs.messageNotifier.register(keys) { wakeUp() })
+          registeredAt = System.nanoTime
+        }
+        notified = false
+        suspended = false
+      }
+    }
+
+    def delivered(scope: Scope): Option[List[Backplane2Message]] =
+      synchronized { registration }.map(MessageResponse.delivered(_, scope, lastMessageId)).getOrElse(Some(Nil))
+
+    def wakeUp() {
+      synchronized {
+        notified = true
+        if (suspended) {
+          suspended = false
+          try {
+            continuation.resume()
+          } catch {
+            case e: IllegalStateException => // already expired and redispatched
+          }
+        }
+      }
+    }
+
+    /** @return true if the request was suspended, false if a notification was received in the meantime */
+    def park(timeoutMillis: Long, recheckMillis: Option[Long]): Boolean = synchronized {
+      if (notified) {
+        false
+      } else {
+        continuation.setTimeout(timeoutMillis)
+        continuation.suspend()
+        suspended = true
+        cancelRecheck()
+        recheck = recheckMillis.map(recheckScheduler.schedule(new Runnable {
+          override def run() {
+            wakeUp()
+          }
+        }, _, TimeUnit.MILLISECONDS))
+        true
+      }
+    }
+
+    def cancel() {
+      synchronized {
+        registration.foreach(_.cancel())
+        registration = None
+        cancelRecheck()
+      }
+    }
+
+    private def cancelRecheck() {
+      synchronized {
+        recheck.foreach(_.cancel(false))
+        recheck = None
+      }
+    }
+  }
 }
@@ -0,0 +1,67 @@
+package com.janrain.backplane.server2
+
+import scala.annotation.tailrec
+import java.io.PrintWriter
+import java.util.Date
+import javax.servlet.http.HttpServletResponse
+import com.janrain.backplane.server2.oauth2.model.{TokenFields, Token}
+import com.janrain.backplane2.server.Scope
+import com.janrain.util.{Utils, Loggable}
+
+/**
+ * Server-Sent Events transport for /v2/messages: the token is validated once for the whole stream,
+ * then each message matching the token's scope is written as one event,
+ * with the message ID as the event ID and the message frame as the event data.
+ *
+ * Streams are bounded (and never outlive the token), clients reconnect with the Last-Event-ID header.
+ * Each open stream holds a request thread, the number of open streams per node is capped by the controller.
+ */
+object MessageStream extends Loggable {
+
+  def scalaObject = this
+
+  final val CONTENT_TYPE = "text/event-stream;charset=UTF-8"
+
+  /**
+   * Writes the messages matching the token's scope, newer than since, to the response,
+   * for up to maxStreamMillis or until the client disconnects.
+   * While no messages are available a comment is written every keepAliveMillis, so that closed connections are detected.
+   */
+  def apply( response: HttpServletResponse, serverName: String, token: Token, since: String,
+             sleepMillis: Long, keepAliveMillis: Long, maxStreamMillis: Long) {
+    val maxStreamUntil = System.currentTimeMillis + maxStreamMillis
+    val streamUntil = token.get(TokenFields.EXPIRES)
+      .map(expires => math.min(Utils.ISO8601.parseMillis(expires), maxStreamUntil)).getOrElse(maxStreamUntil)
+    response.setContentType(CONTENT_TYPE)
+    response.setHeader("Cache-Control", "no-cache")
+    val writer = response.getWriter
+    writer.write("retry: %d\n\n".format(RECONNECT_MILLIS))
+    writer.flush()
+    streamLoop(writer, serverName, token.grantType.isPrivileged, token.scope, since, sleepMillis, keepAliveMillis, streamUntil)
+  }
+
+  // - PRIVATE
+
+  private final val RECONNECT_MILLIS = 1000
+
+  @tailrec
+  private def streamLoop( writer: PrintWriter, serverName: String, privileged: Boolean, scope: Scope, since: String,
+                          sleepMillis: Long, keepAliveMillis: Long, streamUntil: Long) {
+    val now = System.currentTimeMillis
+    if (now < streamUntil) {
+      val (messages, _, lastIdChecked) =
+        MessageResponse.messageLoop(scope, since, sleepMillis, new Date(math.min(now + keepAliveMillis, streamUntil)))
+      if (messages.isEmpty) {
+        writer.write(": keepalive\n\n")
+      } else messages.foreach(message => {
+        writer.write("id: %s\ndata: %s\n\n".format(message.id, message.frameJson(serverName, privileged)))
+      })
+      // checkError() flushes, and reports a closed connection
+      if (writer.checkError()) {
+        logDebug("message stream closed by client")
+      } else {
+        streamLoop(writer, serverName, privileged, scope, lastIdChecked.getOrElse(since), sleepMillis, keepAliveMillis, streamUntil)
+      }
+    }
+  }
+}
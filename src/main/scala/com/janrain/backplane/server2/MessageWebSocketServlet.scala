@@ -0,0 +1,248 @@
+package com.janrain.backplane.server2
+
+import scala.collection.JavaConversions._
+import java.util.concurrent.{ConcurrentHashMap, ScheduledFuture, TimeUnit, Executors}
+import java.util.concurrent.atomic.AtomicBoolean
+import javax.servlet.http.{HttpServletResponse, HttpServletRequest}
+import org.eclipse.jetty.websocket.{WebSocket, WebSocketServlet}
+import org.codehaus.jackson.map.ObjectMapper
+import org.apache.commons.lang.StringUtils
+import org.apache.commons.lang.exception.ExceptionUtils
+import com.janrain.backplane.common.BackplaneServerException
+import com.janrain.backplane.config.BackplaneConfig
+import com.janrain.backplane.server2.dao.BP2DAOs
+import com.janrain.backplane.server2.model.Backplane2Message
+import com.janrain.backplane.server2.oauth2.model.{TokenFields, Token}
+import com.janrain.backplane2.server.Scope
+import com.janrain.oauth2.{OAuth2, TokenException}
+import com.janrain.util.{Utils, ServletUtil, Loggable}
+
+/**
+ * WebSocket transport for Backplane 2 messages.
+ *
+ * The access token is validated once, when the socket is opened; the client can then subscribe
+ * to several scopes (restricted to the token's scope) over the same socket.
+ *
+ * Client messages:
+ *   {"subscribe": "<subscription id>", "scope": "<scope string>", "since": "<optional message ID>"}
+ *   {"unsubscribe": "<subscription id>"}
+ *
+ * Server messages:
+ *   {"subscription": "<subscription id>", "messages": [<message frames>], "moreMessages": <boolean>}
+ *   {"subscription": "<optional subscription id>", "error": "<error code>", "error_description": "<description>"}
+ *
+ * The socket is closed when the token expires.
+ */
+class MessageWebSocketServlet extends WebSocketServlet with Loggable {
+
+  import MessageWebSocketServlet._
+
+  override protected def service(request: HttpServletRequest, response: HttpServletResponse) {
+    try {
+      ServletUtil.checkSecure(request)
+      Token.fromRequest(request) match {
+        case Some(token) if ! token.grantType.isRefresh =>
+          request.setAttribute(TOKEN_ATTRIBUTE, token)
+          super.service(request, response)
+        case _ =>
+          response.sendError(HttpServletResponse.SC_FORBIDDEN, "invalid token")
+      }
+    } catch {
+      case e: TokenException => response.sendError(e.getHttpResponseCode, e.getMessage)
+      case e: BackplaneServerException => response.sendError(e.code.value, e.getMessage)
+    }
+  }
+
+  def doWebSocketConnect(request: HttpServletRequest, protocol: String): WebSocket =
+    new MessageSocket(request.getServerName, request.getAttribute(TOKEN_ATTRIBUTE).asInstanceOf[Token])
+
+}
+
+object MessageWebSocketServlet extends Loggable {
+
+  // - PRIVATE
+
+  private final val TOKEN_ATTRIBUTE = classOf[MessageWebSocketServlet].getName + ".token"
+
+  private final val MAX_SUBSCRIPTIONS_PER_SOCKET = 20
+
+  private final val RECHECK_MILLIS = 3000L
+
+  private final val WORKER_THREADS = 4
+
+  private val jsonMapper = new ObjectMapper
+
+  private val workers = Executors.newScheduledThreadPool(WORKER_THREADS)
+
+  BackplaneConfig.addToBackgroundServices("v2_messages_websocket", workers)
+
+  private class MessageSocket(serverName: String, token: Token) extends WebSocket {
+
+    private val tokenScope = token.scope
+    private val privileged = token.grantType.isPrivileged
+
+    private val subscriptions = new ConcurrentHashMap[String, Subscription]
+
+    @volatile private var outbound: Option[WebSocket.Outbound] = None
+    @volatile private var timers: List[ScheduledFuture[_]] = Nil
+
+    def onConnect(connection: WebSocket.Outbound) {
+      outbound = Some(connection)
+      val expiry = token.get(TokenFields.EXPIRES).map(Utils.ISO8601.parseMillis(_) - System.currentTimeMillis).map(
+        expiresIn => workers.schedule(new Runnable {
+          override def run() {
+            logDebug("token expired, closing message socket")
+            connection.disconnect()
+          }
+        }, expiresIn, TimeUnit.MILLISECONDS))
+      // periodic store re-check, only while the notifications subscription is down or the last store check was not current
+      val recheck = workers.scheduleWithFixedDelay(new Runnable {
+        override def run() {
+          val connected = BP2DAOs.messageNotifier.isConnected
+          subscriptions.values.filter(subscription => ! connected || ! subscription.isCurrent).foreach(_.check(checkStore = true))
+        }
+      }, RECHECK_MILLIS, RECHECK_MILLIS, TimeUnit.MILLISECONDS)
+      timers = recheck :: expiry.toList
+    }
+
+    def onMessage(frame: Byte, data: String) {
+      try {
+        val request = jsonMapper.readValue(data, classOf[java.util.Map[String, Object]]).toMap.mapValues(value => String.valueOf(value))
+        (request.get("subscribe"), request.get("unsubscribe")) match {
+          case (Some(id), None) => subscribe(id, request.get("scope").getOrElse(""), request.get("since").getOrElse(""))
+          case (None, Some(id)) => Option(subscriptions.remove(id)).foreach(_.cancel())
+          case _ => sendError(None, OAuth2.OAUTH2_TOKEN_INVALID_REQUEST, "invalid request: " + data)
+        }
+      } catch {
+        case e: Exception => sendError(None, OAuth2.OAUTH2_TOKEN_INVALID_REQUEST, "invalid request: " + e.getMessage)
+      }
+    }
+
+    def onMessage(frame: Byte, data: Array[Byte], offset: Int, length: Int) {
+      sendError(None, OAuth2.OAUTH2_TOKEN_INVALID_REQUEST, "binary messages not supported")
+    }
+
+    def onFragment(more: Boolean, opcode: Byte, data: Array[Byte], offset: Int, length: Int) {
+      // fragments are assembled by the container and delivered with onMessage
+    }
+
+    def onDisconnect() {
+      outbound = None
+      timers.foreach(_.cancel(false))
+      subscriptions.values.foreach(_.cancel())
+      subscriptions.clear()
+    }
+
+    private def subscribe(id: String, scopeString: String, since: String) {
+      try {
+        val scope = Scope.checkCombine(tokenScope, if (StringUtils.isBlank(scopeString)) null else new Scope(scopeString))
+        if (subscriptions.size >= MAX_SUBSCRIPTIONS_PER_SOCKET && ! subscriptions.containsKey(id)) {
+          sendError(Some(id), OAuth2.OAUTH2_TOKEN_INVALID_REQUEST, "too many subscriptions, max: " + MAX_SUBSCRIPTIONS_PER_SOCKET)
+        } else {
+          val subscription = new Subscription(id, scope, since)
+          Option(subscriptions.put(id, subscription)).foreach(_.cancel())
+          subscription.check(checkStore = true)
+        }
+      } catch {
+        case e: TokenException => sendError(Some(id), e.getOauthErrorCode, e.getMessage)
+      }
+    }
+
+    private def send(message: java.util.Map[String, Object]) {
+      outbound.filter(_.isOpen).foreach(connection => connection.synchronized {
+        connection.sendMessage(jsonMapper.writeValueAsString(message))
+      })
+    }
+
+    private def sendError(subscriptionId: Option[String], errorCode: String, description: String) {
+      val error = new java.util.HashMap[String, Object]
+      subscriptionId.foreach(error.put("subscription", _))
+      error.put("error", errorCode)
+      error.put("error_description", description)
+      try {
+        send(error)
+      } catch {
+        case e: Exception => logDebug("error sending message socket error: " + e.getMessage)
+      }
+    }
+
+    /**
+     * One scope subscription: registered with the node's message notifier,
+     * messages are checked (and sent) on the workers pool, one check at a time per subscription.
+     * Delivered messages are sent only after the store backlog was sent (no more messages, no pending store check)
+     * and the last store check was current, see MessageResponse.isCurrent(); the store is checked otherwise.
+     */
+    private class Subscription(id: String, scope: Scope, private var since: String) {
+
+      private val scheduled = new AtomicBoolean(false)
+      private val storeCheck = new AtomicBoolean(false)
+      @volatile private var cancelled = false
+      @volatile private var current = false
+
+      private val registration = BP2DAOs.messageNotifier.register(MessageResponse.notificationKeys(scope)) { check(checkStore = false) }
+      private val registeredAt = System.nanoTime
+
+      def check(checkStore: Boolean) {
+        if (checkStore) storeCheck.set(true)
+        if (! cancelled && ! scheduled.getAndSet(true)) workers.execute(new Runnable {
+          override def run() {
+            scheduled.set(false)
+            checkMessages()
+          }
+        })
+      }
+
+      def cancel() {
+        cancelled = true
+        registration.cancel()
+      }
+
+      def isCurrent: Boolean = current
+
+      private def checkMessages() {
+        synchronized {
+          try {
+            if (! cancelled) {
+              val feedPosition = BP2DAOs.messageNotifier.lastFeedId
+              // deliveries are left pending while the store is checked, those not newer than the checked messages are dropped later
+              val delivered = if (storeCheck.get || ! current) None else MessageResponse.delivered(registration, scope, since)
+              val (messages, isMore, lastIdChecked) = delivered match {
+                case Some(Nil) => (Nil, false, None)
+                case Some(found) => MessageResponse.frame(found)
+                case None =>
+                  // cleared before the check, so that checks requested meanwhile are not lost; restored if the check fails
+                  storeCheck.set(false)
+                  val checked = try {
+                    BP2DAOs.messageDao.retrieveMessagesPerScope(scope, since, registeredAt)
+                  } catch {
+                    case e: Exception =>
+                      storeCheck.set(true)
+                      throw e
+                  }
+                  current = MessageResponse.isCurrent(checked._3, feedPosition)
+                  checked
+              }
+              // the token's scope is enforced on each message: subscriptions may only narrow it
+              val inTokenScope = messages.filter(tokenScope.isMessageInScope)
+              lastIdChecked.filter(StringUtils.isNotBlank).foreach(since = _)
+              if (! inTokenScope.isEmpty) send(frames(inTokenScope, isMore))
+              if (isMore) check(checkStore = true)
+            }
+          } catch {
+            case e: Exception =>
+              logger.warn("error checking messages for socket subscription: " + ExceptionUtils.getRootCauseMessage(e), BackplaneConfig.getDebugException(e))
+              sendError(Some(id), OAuth2.OAUTH2_TOKEN_INVALID_REQUEST, "error retrieving messages")
+          }
+        }
+      }
+
+      private def frames(messages: List[Backplane2Message], more: Boolean): java.util.Map[String, Object] = {
+        val response = new java.util.HashMap[String, Object]
+        response.put("subscription", id)
+        response.put("messages", RenderedFrames(messages, serverName, privileged))
+        response.put("moreMessages", java.lang.Boolean.valueOf(more))
+        response
+      }
+    }
+  }
+}
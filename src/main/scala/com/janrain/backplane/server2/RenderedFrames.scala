@@ -0,0 +1,24 @@
+package com.janrain.backplane.server2
+
+import org.codehaus.jackson.JsonGenerator
+import org.codehaus.jackson.map.{SerializerProvider, JsonSerializable}
+import com.janrain.backplane.server2.model.Backplane2Message
+
+/**
+ * JSON array of message frames, written as-is from the messages' rendered frames.
+ */
+class RenderedFrames(frames: List[String]) extends JsonSerializable {
+
+  def serialize(jgen: JsonGenerator, provider: SerializerProvider) {
+    jgen.writeStartArray()
+    jgen.writeRaw(frames.mkString(","))
+    jgen.writeEndArray()
+  }
+}
+
+object RenderedFrames {
+
+  /** frames for the messages, as stored at ingest or rendered at most once per message instance, see Backplane2Message.renderedFrame() */
+  def apply(messages: List[Backplane2Message], serverName: String, privileged: Boolean): RenderedFrames =
+    new RenderedFrames(messages.map(_.frameJson(serverName, privileged)))
+}
@@ -1,10 +1,11 @@
 package com.janrain.backplane.server2.dao
 
-import com.janrain.backplane.dao.redis.{MessageProcessorDaoSupport, RedisMessageDao}
+import com.janrain.backplane.dao.redis.{MessageNotifier, MessageProcessorDaoSupport, RedisMessageDao}
 import com.janrain.backplane.server2.oauth2.model._
 import com.janrain.backplane.dao.{LegacyDaoForwarder, PasswordHasherDao, ExpiringDao}
 import com.janrain.backplane.server2.model._
 import com.janrain.backplane.server2.dao.redis.RedisBackplane2MessageDao
+import com.janrain.backplane2.server.dao.MessageCache
 import scala.collection.JavaConversions._
 
 /**
@@ -12,6 +13,8 @@ import scala.collection.JavaConversions._
  */
 object BP2DAOs {
 
+  private final val MESSAGE_CACHE_MAX_BYTES = 10L * 1024 * 1024
+
   val authSessionDao: AuthSessionDao = new RedisMessageDao[AuthSession]("bp2AuthSession:")
     with AuthSessionDao
     with ExpiringDao[AuthSession] {
@@ -131,6 +134,15 @@ object BP2DAOs {
 
   type BackplaneMessageDaoWithProcessor = Backplane2MessageDao with MessageProcessorDaoSupport[Backplane2MessageFields.EnumVal,Backplane2Message]
 
-  val messageDao: BackplaneMessageDaoWithProcessor = RedisBackplane2MessageDao
+  /** tail of recently committed messages, fed by the messageNotifier (with a single message processor shard only) */
+  val messageCache = new MessageCache[Backplane2Message](MESSAGE_CACHE_MAX_BYTES)
+
+  val messageDao: BackplaneMessageDaoWithProcessor = new RedisBackplane2MessageDao
+    with CoalescingMessageDao
+    with CachedTailMessageDao {
+    def messageCache = BP2DAOs.messageCache
+  }
+
+  val messageNotifier = new MessageNotifier(messageDao, Some(messageCache))
 
 }
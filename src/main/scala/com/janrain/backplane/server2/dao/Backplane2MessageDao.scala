@@ -17,4 +17,18 @@ trait Backplane2MessageDao extends Dao[Backplane2Message] {
     */
   def retrieveMessagesPerScope(scope: Scope, since: String): (List[Backplane2Message], Boolean, Option[String])
 
+  /**
+   * Same as retrieveMessagesPerScope(scope, since), for callers registered for message notifications at registeredAt (System.nanoTime):
+   * the store is read after registeredAt, so that messages committed in between are either retrieved or notified.
+   */
+  def retrieveMessagesPerScope(scope: Scope, since: String, registeredAt: Long): (List[Backplane2Message], Boolean, Option[String]) =
+    retrieveMessagesPerScope(scope, since)
+
+}
+
+object Backplane2MessageDao {
+
+  /** maximum number of messages returned in one /v2/messages response */
+  final val MAX_MSGS_IN_FRAME = 25
+
 }
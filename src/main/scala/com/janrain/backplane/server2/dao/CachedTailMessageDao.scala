@@ -0,0 +1,47 @@
+package com.janrain.backplane.server2.dao
+
+import scala.collection.JavaConversions._
+import java.util.concurrent.TimeUnit
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.MetricName
+import com.janrain.backplane.common.model.Message
+import com.janrain.backplane.server2.model.{Backplane2MessageFields, Backplane2Message}
+import com.janrain.backplane2.server.Scope
+import com.janrain.backplane2.server.dao.MessageCache
+
+/**
+ * Answers retrieveMessagesPerScope() from the node-local tail cache of recently committed messages
+ * when all messages after since are cached, otherwise falls through to the underlying DAO.
+ */
+trait CachedTailMessageDao extends Backplane2MessageDao {
+
+  def messageCache: MessageCache[Backplane2Message]
+
+  abstract override def retrieveMessagesPerScope(scope: Scope, since: String): (List[Backplane2Message], Boolean, Option[String]) =
+    cached(scope, since).getOrElse(super.retrieveMessagesPerScope(scope, since))
+
+  abstract override def retrieveMessagesPerScope(scope: Scope, since: String, registeredAt: Long): (List[Backplane2Message], Boolean, Option[String]) =
+    cached(scope, since).getOrElse(super.retrieveMessagesPerScope(scope, since, registeredAt))
+
+  // - PRIVATE
+
+  private def cached(scope: Scope, since: String): Option[(List[Backplane2Message], Boolean, Option[String])] =
+    Option(messageCache.getMessagesSince(since)) match {
+      case Some(tail) =>
+        tailCacheHits.mark()
+        val inScope = tail.getMessages.toList.filter(msg =>
+          scope.isMessageInScope(msg) && ! Message.isExpired(msg.get(Backplane2MessageFields.EXPIRE)))
+        val inFrame = inScope.take(Backplane2MessageDao.MAX_MSGS_IN_FRAME)
+        if (inFrame.size < inScope.size) Some((inFrame, true, Some(inFrame.last.id)))
+        else Some((inFrame, false, Some(tail.getLastId)))
+      case None =>
+        tailCacheMisses.mark()
+        None
+    }
+
+  private val tailCacheHits = Metrics.newMeter(
+    new MetricName("v2", classOf[CachedTailMessageDao].getName.replace(".", "_"), "tail_cache_hits"), "retrievals", TimeUnit.SECONDS)
+
+  private val tailCacheMisses = Metrics.newMeter(
+    new MetricName("v2", classOf[CachedTailMessageDao].getName.replace(".", "_"), "tail_cache_misses"), "retrievals", TimeUnit.SECONDS)
+}
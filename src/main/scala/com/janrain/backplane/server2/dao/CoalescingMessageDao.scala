@@ -0,0 +1,83 @@
+package com.janrain.backplane.server2.dao
+
+import java.util.concurrent.{TimeUnit, CountDownLatch, ConcurrentHashMap}
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.{Gauge, MetricName}
+import com.janrain.backplane.server2.model.Backplane2Message
+import com.janrain.backplane2.server.Scope
+import scala.annotation.tailrec
+
+/**
+ * Single-flight layer for retrieveMessagesPerScope():
+ * concurrent calls with equal scope and since share one in-flight retrieval and its result.
+ * Callers registered for message notifications only share retrievals started after they registered,
+ * a retrieval started earlier may miss messages committed before the registration, which are not notified to them either.
+ */
+trait CoalescingMessageDao extends Backplane2MessageDao {
+
+  abstract override def retrieveMessagesPerScope(scope: Scope, since: String): (List[Backplane2Message], Boolean, Option[String]) =
+    coalesced(scope, since, None)
+
+  override def retrieveMessagesPerScope(scope: Scope, since: String, registeredAt: Long): (List[Backplane2Message], Boolean, Option[String]) =
+    coalesced(scope, since, Some(registeredAt))
+
+  // - PRIVATE
+
+  @tailrec
+  private def coalesced(scope: Scope, since: String, registeredAt: Option[Long]): (List[Backplane2Message], Boolean, Option[String]) = {
+    val key = (scope, since)
+    val retrieval = new InFlightRetrieval
+    val shared = Option(inFlight.putIfAbsent(key, retrieval))
+    if (shared.exists(sharedRetrieval => registeredAt.forall(sharedRetrieval.started - _ >= 0))) {
+      scopeRetrievals.mark()
+      coalescedScopeRetrievals.mark()
+      shared.get.result
+    } else if (shared.isEmpty || inFlight.replace(key, shared.get, retrieval)) {
+      // an earlier retrieval is replaced for later callers, and completes for its own
+      scopeRetrievals.mark()
+      try {
+        retrieval.complete(Right(super.retrieveMessagesPerScope(scope, since)))
+      } catch {
+        case e: Throwable =>
+          retrieval.complete(Left(e))
+      } finally {
+        inFlight.remove(key, retrieval)
+      }
+      retrieval.result
+    } else coalesced(scope, since, registeredAt) // replaced or completed concurrently
+  }
+
+  private class InFlightRetrieval {
+
+    val started = System.nanoTime
+
+    def complete(outcome: Either[Throwable, (List[Backplane2Message], Boolean, Option[String])]) {
+      value = outcome
+      done.countDown()
+    }
+
+    def result: (List[Backplane2Message], Boolean, Option[String]) = {
+      done.await()
+      value match {
+        case Right(retrieved) => retrieved
+        case Left(e) => throw e
+      }
+    }
+
+    private val done = new CountDownLatch(1)
+    @volatile private var value: Either[Throwable, (List[Backplane2Message], Boolean, Option[String])] = null
+  }
+
+  private val inFlight = new ConcurrentHashMap[(Scope, String), InFlightRetrieval]
+
+  private val scopeRetrievals = Metrics.newMeter(
+    new MetricName("v2", classOf[CoalescingMessageDao].getName.replace(".", "_"), "scope_retrievals"), "retrievals", TimeUnit.SECONDS)
+
+  private val coalescedScopeRetrievals = Metrics.newMeter(
+    new MetricName("v2", classOf[CoalescingMessageDao].getName.replace(".", "_"), "coalesced_scope_retrievals"), "retrievals", TimeUnit.SECONDS)
+
+  Metrics.newGauge(new MetricName("v2", classOf[CoalescingMessageDao].getName.replace(".", "_"), "scope_retrievals_coalescing_ratio"),
+    new Gauge[java.lang.Double] {
+      def value = coalescedScopeRetrievals.count.toDouble / math.max(1, scopeRetrievals.count)
+    })
+}
@@ -1,39 +1,308 @@
 package com.janrain.backplane.server2.dao.redis
 
 import com.janrain.backplane.server2.dao.Backplane2MessageDao
-import com.janrain.backplane.dao.redis.{MessageProcessorDaoSupport, Redis, RedisMessageDao}
+import com.janrain.backplane.dao.redis.{RedisScript, MessageProcessorDaoSupport, Redis, RedisMessageDao}
 import com.janrain.backplane.server2.model.{Backplane2MessageFields, Backplane2Message}
 import com.janrain.backplane2.server.Scope
 import com.redis.RedisClient
 import com.janrain.backplane.common.model.BackplaneMessage
 import scala.collection.JavaConversions._
 import com.janrain.util.RandomUtils
+import com.janrain.backplane.common.PayloadCompression
+import com.janrain.backplane.config.dao.ConfigDAOs
+import com.janrain.backplane.config.SystemProperties
+import com.janrain.backplane.config.model.ServerConfigFields
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.MetricName
+import java.util.concurrent.TimeUnit
+import scala.annotation.tailrec
 
 /**
  * @author Johnny Bufu
  */
-object RedisBackplane2MessageDao extends RedisMessageDao[Backplane2Message]("bp2Message:")
+class RedisBackplane2MessageDao extends RedisMessageDao[Backplane2Message]("bp2Message:")
   with Backplane2MessageDao
   with MessageProcessorDaoSupport[Backplane2MessageFields.EnumVal,Backplane2Message] {
 
-  private final val MAX_MSGS_IN_FRAME = 25
-
   private final val INDEXED_SCOPE_FIELDS = Map(
     Backplane2MessageFields.CHANNEL -> channelKey _,
     Backplane2MessageFields.BUS -> busKey _ )
 
   val idField = Backplane2MessageFields.ID
 
-  protected def instantiate(data: Map[_, _]) = new Backplane2Message(data.map(kv => kv._1.toString -> kv._2.toString))
+  protected def instantiate(data: Map[_, _]) = {
+    val fields = data.map(kv => kv._1.toString -> kv._2.toString)
+    val message = new Backplane2Message(fields - Backplane2Message.RENDERED_FRAME_FIELD)
+    fields.get(Backplane2Message.RENDERED_FRAME_FIELD).foreach(message.cacheRenderedFrame)
+    message
+  }
 
+  /** commits the message directly if enabled, falls back to the message processor queue */
   override def store(item: Backplane2Message) {
-    Redis.writePool.withClient(_.rpush(messagesQueueKey, item.serialize))
+    if (! (isDirectWrite && storeDirect(item))) enqueue(item)
   }
 
+  override val processorShards: Int = SystemProperties.messageProcessorShards
+
+  override def newMessageId(time: Long): String = BackplaneMessage.generateCompactId(time)
+
   override def messageCount(channel: String): Long = Redis.readPool.withClient(_.zcard(channelKey(channel))).getOrElse(0)
 
-  def retrieveMessagesPerScope(scope: Scope, since: String): (List[Backplane2Message], Boolean, Option[String]) = {
+  /**
+   * Stored, selective filter fields: channel and bus are always indexed,
+   * sticky has only two values and messageURL is not stored (derived from the ID).
+   */
+  override val secondaryIndexableFields: Set[String] = Set(Backplane2MessageFields.SOURCE, Backplane2MessageFields.TYPE).map(_.name)
+
+  override def secondaryIndexFields: Set[String] =
+    ConfigDAOs.serverConfigDao.oneServerConfig.map(_.indexedScopeFields).getOrElse(Set.empty).intersect(secondaryIndexableFields)
+
+  /**
+   * Payloads are stored compressed if larger than the configured threshold;
+   * the frame without payload is rendered once, at ingest, and stored with the message fields,
+   * so that it is retrieved along with them.
+   */
+  override def storedFields(message: Backplane2Message): Map[String, String] = {
+    val stored = message + (Backplane2Message.RENDERED_FRAME_FIELD -> message.renderedFrame(false))
+    message.get(Backplane2MessageFields.PAYLOAD) match {
+      case Some(payload) => stored + (Backplane2MessageFields.PAYLOAD.name -> PayloadCompression.compress(payload, compressionMinBytes))
+      case None => stored
+    }
+  }
+
+  def retrieveMessagesPerScope(scope: Scope, since: String): (List[Backplane2Message], Boolean, Option[String]) =
+    nothingNewer(scope, since) match {
+      case Some(lastId) =>
+        highWaterMarkHits.mark()
+        (Nil, false, Some(lastId))
+      case None if isSingleChannel(scope) =>
+        val context = singleChannelRetrievalTime.time()
+        try {
+          retrieveSingleChannel(scope, since)
+        } finally {
+          context.stop()
+        }
+      case None =>
+        retrieveScripted(scope, since).getOrElse {
+          val context = pipelinedRetrievalTime.time()
+          try {
+            retrieveIndexed(scope, since)
+          } finally {
+            context.stop()
+          }
+        }
+    }
+
+  // - PRIVATE
+
+  private def isDirectWrite: Boolean =
+    ConfigDAOs.serverConfigDao.oneServerConfig.exists(_.isEnabled(ServerConfigFields.V2_MESSAGES_DIRECT_WRITE))
+
+  private def compressionMinBytes: Long = ConfigDAOs.serverConfigDao.oneServerConfig.map(_.payloadCompressionMinBytes).getOrElse(0L)
+
+  private val highWaterMarkHits = Metrics.newMeter(
+    new MetricName("v2", classOf[RedisBackplane2MessageDao].getName.replace(".", "_"), "high_water_mark_hits"), "retrievals", TimeUnit.SECONDS)
+
+  private final val SCRIPT_RETRY_MILLIS = 60000L
+
+  /** time until which the scope retrieval script is not used after a failure, 0 if it did not fail since it last succeeded */
+  @volatile private var scriptDisabledUntil = 0L
+
+  private val scriptFailures = Metrics.newMeter(
+    new MetricName("v2", classOf[RedisBackplane2MessageDao].getName.replace(".", "_"), "scope_retrieval_script_failures"), "retrievals", TimeUnit.SECONDS)
+
+  private val scriptedRetrievalTime = Metrics.newTimer(
+    new MetricName("v2", classOf[RedisBackplane2MessageDao].getName.replace(".", "_"), "scope_retrieval_script_time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS)
+
+  private val pipelinedRetrievalTime = Metrics.newTimer(
+    new MetricName("v2", classOf[RedisBackplane2MessageDao].getName.replace(".", "_"), "scope_retrieval_pipeline_time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS)
+
+  private val singleChannelRetrievalTime = Metrics.newTimer(
+    new MetricName("v2", classOf[RedisBackplane2MessageDao].getName.replace(".", "_"), "scope_retrieval_single_channel_time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS)
+
+  private def scopeValues(scope: Scope, field: Backplane2MessageFields.EnumVal): List[String] =
+    Option(scope.getScopeFieldValues(field)).map(_.toList).getOrElse(Nil)
+
+  /**
+   * @return the ID to continue from (the last message ID in the store, if after since and not capped, see commitCap()),
+   *         if the high-water marks of all channels (or buses, if no channels are specified) in the scope
+   *         are present and not newer than since, None if the indexes need to be checked
+   */
+  private def nothingNewer(scope: Scope, since: String): Option[String] = {
+    val sinceTime = BackplaneMessage.timeFromId(since)
+    if (sinceTime == 0) None
+    else {
+      val channels = scopeValues(scope, Backplane2MessageFields.CHANNEL)
+      // matching messages are in (all) of the specified channels' indexes, regardless of the buses
+      val markerKeys =
+        if (! channels.isEmpty) channels.map(channelLastIdKey)
+        else scopeValues(scope, Backplane2MessageFields.BUS).map(busLastIdKey)
+      markerKeys match {
+        case Nil => None
+        case first :: rest =>
+          Redis.readPool.withClient(_.pipeline(p => {
+            commitReservationKeys.foreach(p.get(_))
+            p.zrange(messagesKey, -1, -1, RedisClient.ASC) // extract last msg metadata /ID
+            p.mget(first, rest: _*)
+          })).map(_.splitAt(commitReservationKeys.size)).collect {
+            case (reservations, List(Some(lastAvailableMsgMetaData: List[_]), Some(markers: List[_]))) if markers.forall {
+              case Some(lastId) => BackplaneMessage.timeFromId(lastId.toString) <= sinceTime
+              case _ => false
+            } => lastMessageId(lastAvailableMsgMetaData.headOption.map(_.toString), commitCap(reservations))
+              .filter(BackplaneMessage.timeFromId(_) > sinceTime).getOrElse(since)
+          }
+      }
+    }
+  }
+
+  /** @return true if the frame limit can be applied to index retrievals, i.e. no scope fields are filtered in memory only */
+  private def isIndexedOnly(scope: Scope): Boolean = scope.getScopeMap.keySet.forall(INDEXED_SCOPE_FIELDS.contains)
+
+  /** @return true for (anonymous token) scopes consisting of exactly one bus and one channel */
+  private def isSingleChannel(scope: Scope): Boolean = {
+    val scopeMap = scope.getScopeMap
+    scopeMap.size == 2 &&
+    scopeValues(scope, Backplane2MessageFields.BUS).size == 1 &&
+    scopeValues(scope, Backplane2MessageFields.CHANNEL).size == 1
+  }
+
+  /**
+   * Reads the channel index directly, bounded to one frame (plus one ID to determine if there are more),
+   * the bus is checked in memory.
+   */
+  private def retrieveSingleChannel(scope: Scope, since: String): (List[Backplane2Message], Boolean, Option[String]) = {
+    val channel = scopeValues(scope, Backplane2MessageFields.CHANNEL).head
+    val pipelineResponse = Redis.readPool.withClient(_.pipeline( p => {
+      commitReservationKeys.foreach(p.get(_))
+      p.zrange(messagesKey, -1, -1, RedisClient.ASC) // extract last msg metadata /ID
+      p.zrangebyscore(channelKey(channel), BackplaneMessage.timeFromId(since), minInclusive = false, Double.MaxValue, maxInclusive = true,
+        Some((0, Backplane2MessageDao.MAX_MSGS_IN_FRAME + 1)), RedisClient.ASC)
+    }))
+
+    pipelineResponse.map(_.splitAt(commitReservationKeys.size)).map { case (reservations, results) => results.collect {
+      case Some(zrangeResult: List[_]) => zrangeResult.map(_.toString)
+    } match {
+      case List(lastAvailableMsgMetaData, msgIds) => frame(scope, since, msgIds, limited = true, lastAvailableMsgMetaData, commitCap(reservations))
+      case _ => (Nil, false, None)
+    }}.get
+  }
+
+  /**
+   * Fetches the messages for the retrieved message IDs and builds the frame.
+   * Messages after the cap are left for a later retrieval, see MessageProcessorDaoSupport.commitCap().
+   *
+   * @param limited true if msgIds was retrieved with a limit of (one more than) a frame
+   * @return messages in the frame, whether there are more, the ID to continue from
+   */
+  private def frame(scope: Scope, since: String, retrievedIds: List[String], limited: Boolean, lastAvailableMsgMetaData: List[String],
+                    cap: Option[Long]): (List[Backplane2Message], Boolean, Option[String]) = {
+    val msgIds = cap.map(capTime => retrievedIds.takeWhile(BackplaneMessage.timeFromId(_) <= capTime)).getOrElse(retrievedIds)
+    val frameIds = if (limited) msgIds.take(Backplane2MessageDao.MAX_MSGS_IN_FRAME) else msgIds
+    val messages =
+      if (frameIds.isEmpty) Nil
+      else get(frameIds: _*).map(_._2).flatten.filter(scope.isMessageInScope)
+    val inFrame = messages.take(Backplane2MessageDao.MAX_MSGS_IN_FRAME)
+    val lastId =
+      if (frameIds.size < msgIds.size) frameIds.lastOption
+      else if (inFrame.size < messages.size) inFrame.lastOption.map(_.id)
+      else lastMessageId(lastAvailableMsgMetaData.headOption, cap).orElse(frameIds.lastOption).orElse(Some(since))
+    (inFrame, frameIds.size < msgIds.size || inFrame.size < messages.size, lastId)
+  }
+
+  /** @return the message ID of the last message metadata, None if missing or capped */
+  private def lastMessageId(lastAvailableMsgMetaData: Option[String], cap: Option[Long] = None): Option[String] =
+    lastAvailableMsgMetaData.map(_.split(" ")).collect {
+      case Array(bus, channel, lastMsgId, expTime) => lastMsgId
+    }.filter(lastMsgId => cap.forall(BackplaneMessage.timeFromId(lastMsgId) <= _))
+
+  /**
+   * Single round trip retrieval (no temporary keys) through the scope retrieval script.
+   * Filter scope fields other than bus and channel are checked against their secondary indexes, where configured and available.
+   * The frame limit is applied by the script if all scope fields are checked against indexes, in memory otherwise.
+   *
+   * @return None if the scope has no bus or channel fields or the script failed (recently, see scriptFailed()),
+   *         the pipelined retrieval is used then
+   */
+  private def retrieveScripted(scope: Scope, since: String): Option[(List[Backplane2Message], Boolean, Option[String])] = {
+    val channels = scopeValues(scope, Backplane2MessageFields.CHANNEL)
+    val buses = scopeValues(scope, Backplane2MessageFields.BUS)
+    if (channels.isEmpty && buses.isEmpty || System.currentTimeMillis < scriptDisabledUntil) None
+    else {
+      // the start times of fields no longer configured are cleared lazily, their indexes may be incomplete
+      val indexedFields = secondaryIndexFields
+      val (secondary, unindexed) = scope.getScopeMap.keySet.toList
+        .filterNot(INDEXED_SCOPE_FIELDS.contains)
+        .partition(field => indexedFields.contains(field.name))
+      val secondaryValues = secondary.map(field => field.name -> scopeValues(scope, field))
+      val limit = if (unindexed.isEmpty) Backplane2MessageDao.MAX_MSGS_IN_FRAME else 0
+      val context = scriptedRetrievalTime.time()
+      try {
+        Redis.readPool.withClient(RedisBackplane2MessageDao.SCOPE_RETRIEVAL_SCRIPT.evalMulti(_,
+          channels.map(channelKey) ::: buses.map(busKey) :::
+            secondaryValues.flatMap { case (field, values) => fieldIndexStartKey(field) :: values.map(fieldIndexKey(field, _)) } :::
+            commitReservationKeys ::: List(messagesKey),
+          List(BackplaneMessage.timeFromId(since).toString, limit.toString, channels.size.toString, itemKey(""),
+            buses.size.toString, secondaryValues.size.toString, processorShards.toString, commitReservationKeys.size.toString) :::
+            secondaryValues.map(_._2.size.toString)
+        )).map(_.flatten) match {
+          case Some(lastMetaData :: moreFlag :: frameLastId :: items) =>
+            val messages = scriptedMessages(items, Nil).filter(scope.isMessageInScope)
+            val inFrame = messages.take(Backplane2MessageDao.MAX_MSGS_IN_FRAME)
+            val lastId =
+              if (moreFlag == "1") Some(frameLastId)
+              else if (inFrame.size < messages.size) inFrame.lastOption.map(_.id)
+              else lastMessageId(Some(lastMetaData)).orElse(Some(since))
+            scriptSucceeded()
+            Some((inFrame, moreFlag == "1" || inFrame.size < messages.size, lastId))
+          case other =>
+            scriptFailed("unexpected result: " + other)
+            None
+        }
+      } catch {
+        case e: Exception =>
+          scriptFailed(e.getMessage)
+          None
+      } finally {
+        context.stop()
+      }
+    }
+  }
+
+  /**
+   * The pipelined retrieval is used for SCRIPT_RETRY_MILLIS after a script failure;
+   * only the first failure after the script last succeeded is logged as a warning.
+   */
+  private def scriptFailed(reason: String) {
+    scriptFailures.mark()
+    if (scriptDisabledUntil == 0L) {
+      logger.warn("scope retrieval script failed, falling back to pipelined retrieval for %s seconds: %s"
+        .format(SCRIPT_RETRY_MILLIS / 1000, reason))
+    } else {
+      logDebug("scope retrieval script failed again: " + reason)
+    }
+    scriptDisabledUntil = System.currentTimeMillis + SCRIPT_RETRY_MILLIS
+  }
+
+  private def scriptSucceeded() {
+    if (scriptDisabledUntil != 0L) {
+      scriptDisabledUntil = 0L
+      logger.info("scope retrieval script succeeded, no longer falling back to pipelined retrieval")
+    }
+  }
+
+  /** script result items: message ID, field count (keys + values), flattened message fields, for each message */
+  @tailrec
+  private def scriptedMessages(items: List[String], result: List[Backplane2Message]): List[Backplane2Message] = items match {
+    case id :: fieldCount :: rest =>
+      val (fields, remaining) = rest.splitAt(fieldCount.toInt)
+      scriptedMessages(remaining, instantiate(fields.grouped(2).collect { case List(k, v) => k -> v }.toMap) :: result)
+    case _ => result.reverse
+  }
+
+  private def retrieveIndexed(scope: Scope, since: String): (List[Backplane2Message], Boolean, Option[String]) = {
+    val limited = isIndexedOnly(scope)
     val pipelineResponse = Redis.readPool.withClient(_.pipeline( p => {
+      commitReservationKeys.foreach(p.get(_))
       p.zrange(messagesKey, -1, -1, RedisClient.ASC) // extract last msg metadata /ID
       // logical OR for all indexed scope fields of the same type
       val unions = for {
@@ -56,30 +325,148 @@ object RedisBackplane2MessageDao extends RedisMessageDao[Backplane2Message]("bp2
           Some(intersectionResult)
         }
       }
-      // filter by time/since
-      .foreach(p.zrangebyscore(_, BackplaneMessage.timeFromId(since), minInclusive = false, Double.MaxValue, maxInclusive = true, None, RedisClient.ASC))
+      // filter by time/since, one frame (plus one ID to determine if there are more) if all scope fields are indexed
+      .foreach(p.zrangebyscore(_, BackplaneMessage.timeFromId(since), minInclusive = false, Double.MaxValue, maxInclusive = true,
+        if (limited) Some((0, Backplane2MessageDao.MAX_MSGS_IN_FRAME + 1)) else None, RedisClient.ASC))
 
       unions.foreach(p.del(_))
     }))
 
-    pipelineResponse.map( _.collect { // the two zrange* operations above
-      case Some(zrangeResult: List[_]) => zrangeResult
+    pipelineResponse.map(_.splitAt(commitReservationKeys.size)).map { case (reservations, results) => results.collect { // the two zrange* operations above
+      case Some(zrangeResult: List[_]) => zrangeResult.map(_.toString)
     } match {
-      case List(lastAvailableMsgMetaData @List(_), msgIds) => {
-        val messages = get(msgIds.map(_.toString): _*).map(_._2).flatten
-        val filtered = messages.filter(scope.isMessageInScope).take(MAX_MSGS_IN_FRAME)
-        val lastId =
-          if (messages.size > filtered.size) Option(filtered.reverse.head.id)
-          else
-        lastAvailableMsgMetaData.map(_.toString.split(" ")).collect {
-          case Array(bus, channel, lastMsgId, expTime) => lastMsgId
-        } match {
-          case List(last) => Option(last)
-          case _ => None
-        }
-        (filtered, filtered.size != messages.size, lastId)
-      }
+      case List(lastAvailableMsgMetaData @List(_), msgIds) => frame(scope, since, msgIds, limited, lastAvailableMsgMetaData, commitCap(reservations))
       case _ => (Nil, false, None)
-    }).get
+    }}.get
   }
 }
+
+object RedisBackplane2MessageDao {
+
+  /**
+   * OR for scope values of the same field, AND across fields:
+   * messages in any of the channel indexes (or bus indexes, if no channels are specified) after since,
+   * present in any of the bus indexes (if both are specified) and in any of the secondary indexes of each secondary field
+   * whose index is usable for since, in score/ID order, with their fields, up to the limit;
+   * expired messages still in the indexes count towards the limit.
+   * The limit is not applied if any secondary field can't be checked against its index.
+   *
+   * Messages after the earliest in-flight commit reservation are left for a later retrieval,
+   * see MessageProcessorDaoSupport.commitCap().
+   *
+   * KEYS: channel index keys, bus index keys, then for each secondary field its index start key and index keys,
+   *       commit reservation keys, messages (metadata) key
+   * ARGV: since time, limit (0 = none), channel keys count, item key prefix, bus keys count,
+   *       secondary fields count, processor shards count, commit reservation keys count,
+   *       then the index keys count of each secondary field
+   * returns: last (not capped) message metadata, more flag, last ID within the limit,
+   *          then for each message its ID, fields count and fields
+   */
+  private[redis] val SCOPE_RETRIEVAL_SCRIPT = new RedisScript("bp2_scope_retrieval", """
+    local sinceTime = tonumber(ARGV[1])
+    local limit = tonumber(ARGV[2])
+    local channelsCount = tonumber(ARGV[3])
+    local busesCount = tonumber(ARGV[5])
+    local secondaryCount = tonumber(ARGV[6])
+    local shardsCount = tonumber(ARGV[7])
+    local reservationsCount = tonumber(ARGV[8])
+
+    local scan, buses, checks = {}, {}, {}
+    for i = 1, channelsCount do
+      scan[#scan + 1] = KEYS[i]
+    end
+    for i = channelsCount + 1, channelsCount + busesCount do
+      buses[#buses + 1] = KEYS[i]
+    end
+    if #scan == 0 then
+      scan = buses
+    elseif #buses > 0 then
+      checks[#checks + 1] = buses
+    end
+    local k = channelsCount + busesCount + 1
+    for f = 1, secondaryCount do
+      local valuesCount = tonumber(ARGV[8 + f])
+      local starts = redis.call('HVALS', KEYS[k])
+      local usable = #starts == shardsCount
+      for _, start in ipairs(starts) do
+        if tonumber(start) > sinceTime then usable = false end
+      end
+      if usable then
+        local group = {}
+        for v = 1, valuesCount do
+          group[#group + 1] = KEYS[k + v]
+        end
+        checks[#checks + 1] = group
+      else
+        limit = 0 -- filtered in memory only
+      end
+      k = k + valuesCount + 1
+    end
+
+    local cap = '+inf'
+    for r = #KEYS - reservationsCount, #KEYS - 1 do
+      local reservation = redis.call('GET', KEYS[r])
+      if reservation then
+        local reserved = tonumber(string.match(reservation, '^%d+')) - 1
+        if cap == '+inf' or reserved < cap then cap = reserved end
+      end
+    end
+
+    local scores, ids = {}, {}
+    for _, scanKey in ipairs(scan) do
+      local range
+      if limit > 0 and #checks == 0 then
+        range = redis.call('ZRANGEBYSCORE', scanKey, '(' .. ARGV[1], cap, 'WITHSCORES', 'LIMIT', 0, limit + 1)
+      else
+        range = redis.call('ZRANGEBYSCORE', scanKey, '(' .. ARGV[1], cap, 'WITHSCORES')
+      end
+      for j = 1, #range, 2 do
+        if not scores[range[j]] then
+          scores[range[j]] = tonumber(range[j + 1])
+          ids[#ids + 1] = range[j]
+        end
+      end
+    end
+    table.sort(ids, function(a, b)
+      if scores[a] == scores[b] then return a < b end
+      return scores[a] < scores[b]
+    end)
+
+    local last = redis.call('ZREVRANGEBYSCORE', KEYS[#KEYS], cap, '-inf', 'LIMIT', 0, 1)
+    local result = { last[1] or '', '0', '' }
+    local found = 0
+    for _, id in ipairs(ids) do
+      local inScope = true
+      for _, group in ipairs(checks) do
+        local inGroup = false
+        for _, indexKey in ipairs(group) do
+          if redis.call('ZSCORE', indexKey, id) then
+            inGroup = true
+            break
+          end
+        end
+        if not inGroup then
+          inScope = false
+          break
+        end
+      end
+      if inScope then
+        if limit > 0 and found == limit then
+          result[2] = '1'
+          break
+        end
+        found = found + 1
+        result[3] = id
+        local fields = redis.call('HGETALL', ARGV[4] .. id)
+        if #fields > 0 then
+          result[#result + 1] = id
+          result[#result + 1] = tostring(#fields)
+          for f = 1, #fields do
+            result[#result + 1] = fields[f]
+          end
+        end
+      end
+    end
+    return result
+  """)
+}
@@ -4,8 +4,7 @@ import com.janrain.backplane.common.model.{BackplaneMessage, MessageField, Messa
 import com.janrain.backplane2.server.Scope
 import com.janrain.backplane2.server.Scope.ScopeType._
 import com.janrain.servlet.InvalidRequestException
-import com.janrain.backplane.common.{BackplaneServerException, DateTimeUtils}
-import java.util.Date
+import com.janrain.backplane.common.{PayloadCompression, BackplaneServerException, DateTimeUtils}
 import com.janrain.util.Loggable
 import org.codehaus.jackson.map.ObjectMapper
 import java.io.IOException
@@ -23,7 +22,7 @@ class Backplane2Message(data: Map[String,String]) extends BackplaneMessage(data,
         Backplane2Message.parseUpstreamData(upstreamData.toMap), defaultExpireSeconds, maxExpireSeconds )
       ++
       Map(
-        Backplane2MessageFields.ID.name -> BackplaneMessage.generateMessageId(new Date),
+        Backplane2MessageFields.ID.name -> BackplaneMessage.generateCompactId(System.currentTimeMillis),
         Backplane2MessageFields.SOURCE.name -> clientSourceUrl
       ))
 
@@ -34,6 +33,43 @@ class Backplane2Message(data: Map[String,String]) extends BackplaneMessage(data,
       .map(field => field.name -> field.frameOutput(id, serverDomain, includePayload, get(field))).toMap
       .filter { case (k,v) => v.isDefined } .mapValues(_.get)
 
+  /**
+   * @return the message frame JSON without the (server domain dependent) messageURL field,
+   *         rendered once per message instance, or as stored at ingest (see cacheRenderedFrame());
+   *         the frame including the payload has the (JSON) payload spliced into the frame without it
+   */
+  def renderedFrame(includePayload: Boolean): String =
+    if (includePayload) {
+      if (payloadFrame == null) {
+        val rendered = renderedFrame(false)
+        payloadFrame = get(Backplane2MessageFields.PAYLOAD).map(PayloadCompression.decompress) match {
+          case Some(payload) =>
+            "{\"" + Backplane2MessageFields.PAYLOAD.name + "\":" + payload + (if (rendered.length > 2) "," else "") + rendered.substring(1)
+          case None => rendered
+        }
+      }
+      payloadFrame
+    } else {
+      if (frame == null) {
+        frame = Backplane2Message.jsonMapper.writeValueAsString(mapAsJavaMap(
+          asFrame("", includePayload = false) - Backplane2MessageFields.MESSAGE_URL.name))
+      }
+      frame
+    }
+
+  /** sets the frame without payload, as rendered and stored with the message at ingest */
+  def cacheRenderedFrame(rendered: String) {
+    frame = rendered
+  }
+
+  /** @return the complete message frame JSON, with the messageURL for the server domain spliced into the rendered frame */
+  def frameJson(serverDomain: String, includePayload: Boolean): String = {
+    val rendered = renderedFrame(includePayload)
+    val messageUrl = Backplane2MessageFields.MESSAGE_URL.frameOutput(id, serverDomain, includePayload, None).get
+    "{\"" + Backplane2MessageFields.MESSAGE_URL.name + "\":" + Backplane2Message.jsonMapper.writeValueAsString(messageUrl) +
+      (if (rendered.length > 2) "," else "") + rendered.substring(1)
+  }
+
   def bus: String = get(Backplane2MessageFields.BUS)
     .getOrElse(throw new IllegalStateException("bus field missing from bp2 message, should have failed validation"))
 
@@ -44,13 +80,21 @@ class Backplane2Message(data: Map[String,String]) extends BackplaneMessage(data,
 
   def expiration: String = get(Backplane2MessageFields.EXPIRE)
     .getOrElse(throw new IllegalStateException("expire field missing from bp2 message, should have failed validation"))
+
+  @volatile private var frame: String = null
+  @volatile private var payloadFrame: String = null
 }
 
 object Backplane2Message {
 
+  /** message hash field holding the frame rendered at ingest, not a message field */
+  final val RENDERED_FRAME_FIELD = "_frame"
+
   private final val UPSTREAM_FIELDS = Backplane2MessageFields.values.filter(_.isUpstream).toList
   private final val UPSTREAM_FIELD_NAMES = UPSTREAM_FIELDS.map(_.name)
 
+  private val jsonMapper = new ObjectMapper
+
   val scopeKeys = Backplane2MessageFields.values.filter(_.scopeType != ScopeType.NONE).map(sc => sc.name -> sc).toMap
 
   private def parseUpstreamData(upstreamData: Map[String,AnyRef]): Map[String,String] = {
@@ -151,7 +195,7 @@ object Backplane2MessageFields extends MessageFieldEnum with Loggable {
     override def frameOutput(msgId: String, serverDomain: String, includePayload: Boolean, fieldValue: Option[String]) = {
       if (includePayload) {
         try {
-          Some(new ObjectMapper().readValue(fieldValue.getOrElse(null), classOf[AnyRef]) ) // un-quote the value
+          Some(new ObjectMapper().readValue(fieldValue.map(PayloadCompression.decompress).getOrElse(null), classOf[AnyRef]) ) // un-quote the value
         } catch {
           case e: IOException => {
             val errMsg = "Error deserializing message payload: " + e.getMessage
@@ -25,7 +25,8 @@ object BusConfig2 {
   private[model] final val RETENTION_MIN_SECONDS = 60L
   private[model] final val RETENTION_MAX_SECONDS = 604800L         // one week
   private[model] final val RETENTION_STICKY_MIN_SECONDS = 28800L   // eight hours
-  private[model] final val RETENTION_STICKY_MAX_SECONDS = 604800L  // one week
+  /** longest bus retention, sticky messages included; also bounds the message indexes, see MessageProcessorDaoSupport.boundIndex() */
+  final val RETENTION_STICKY_MAX_SECONDS = 604800L  // one week
 }
 
 object  BusConfig2Fields extends MessageFieldEnum {
@@ -36,7 +36,8 @@ class Token(data: Map[String,String]) extends Message(data, TokenFields.values)
   .getOrElse( throw new IllegalStateException("Missing value for TokenFields.TYPE"))
 
 
-  def scope: Scope = get(TokenFields.SCOPE).map(scopeValue => {
+  /** parsed (and compiled for message matching) once per token instance */
+  lazy val scope: Scope = get(TokenFields.SCOPE).map(scopeValue => {
     try {
       new Scope(scopeValue)
     } catch {
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.common;
+
+import org.apache.commons.lang.RandomStringUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PayloadCompressionTest {
+
+    @Test
+    public void testRoundTrip() {
+        String payload = largePayload();
+        String compressed = PayloadCompression.compress(payload, 100);
+        assertTrue(PayloadCompression.isCompressed(compressed));
+        assertTrue(compressed.length() < payload.length());
+        assertEquals(payload, PayloadCompression.decompress(compressed));
+    }
+
+    @Test
+    public void testRoundTripNonAscii() {
+        StringBuilder payload = new StringBuilder("{\"text\":\"");
+        for (int i = 0; i < 200; i++) {
+            payload.append("\u00e9t\u00e9 \u65e5\u672c ");
+        }
+        payload.append("\"}");
+        String compressed = PayloadCompression.compress(payload.toString(), 100);
+        assertTrue(PayloadCompression.isCompressed(compressed));
+        assertEquals(payload.toString(), PayloadCompression.decompress(compressed));
+    }
+
+    @Test
+    public void testBelowThresholdNotCompressed() {
+        String payload = largePayload();
+        assertEquals(payload, PayloadCompression.compress(payload, payload.length() + 1));
+        assertEquals(payload, PayloadCompression.compress(payload, 0));
+    }
+
+    @Test
+    public void testIncompressibleNotCompressed() {
+        String payload = "\"" + RandomStringUtils.randomAlphanumeric(200) + "\"";
+        assertEquals(payload, PayloadCompression.compress(payload, 100));
+    }
+
+    @Test
+    public void testCompressedNotCompressedTwice() {
+        String compressed = PayloadCompression.compress(largePayload(), 100);
+        assertEquals(compressed, PayloadCompression.compress(compressed, 100));
+    }
+
+    @Test
+    public void testLegacyValuesReturnedAsIs() {
+        String[] legacy = {"{\"key\":\"value\"}", "[1,2,3]", "\"a string\"", "42", "null", "", null};
+        for (String value : legacy) {
+            assertFalse(PayloadCompression.isCompressed(value));
+            assertEquals(value, PayloadCompression.decompress(value));
+        }
+    }
+
+    // - PRIVATE
+
+    private static String largePayload() {
+        StringBuilder payload = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < 100; i++) {
+            payload.append(i > 0 ? "," : "").append("{\"name\":\"item").append(i).append("\",\"value\":\"some value\"}");
+        }
+        return payload.append("]}").toString();
+    }
+}
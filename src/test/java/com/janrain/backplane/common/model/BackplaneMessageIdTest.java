@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.common.model;
+
+import com.janrain.backplane.common.MessageException;
+import com.janrain.util.Utils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BackplaneMessageIdTest {
+
+    @Test
+    public void testIso8601TimeEdgeDates() {
+        String[] dates = {
+                "1970-01-01T00:00:00.000Z", "1970-01-01T00:00:00.001Z", "1970-12-31T23:59:59.999Z",
+                "1999-12-31T23:59:59.999Z", "2000-01-01T00:00:00.000Z",
+                "2000-02-28T12:00:00.000Z", "2000-02-29T23:59:59.999Z", "2000-03-01T00:00:00.000Z",
+                "2012-02-29T00:00:00.000Z", "2013-02-28T23:59:59.999Z", "2013-03-01T00:00:00.000Z",
+                "2038-01-19T03:14:08.000Z",
+                "2100-02-28T23:59:59.999Z", "2100-03-01T00:00:00.000Z", "2100-12-31T23:59:59.999Z",
+                "2400-02-29T00:00:00.000Z"
+        };
+        for (String date : dates) {
+            long expected = Utils.ISO8601().parseDateTime(date).getMillis();
+            assertEquals(date, expected, BackplaneMessage.timeFromId(date + "-" + "abcdefghij"));
+            assertEquals(date, expected, BackplaneMessage.timeFromId(date));
+            assertEquals(date, new Date(expected), BackplaneMessage.dateFromId(date + "-" + "abcdefghij").get());
+        }
+    }
+
+    @Test
+    public void testIso8601TimeEveryDay() {
+        Random random = new Random();
+        long day = 24 * 3600 * 1000L;
+        long end = Utils.ISO8601().parseDateTime("2500-01-01T00:00:00.000Z").getMillis();
+        for (long time = 0; time < end; time += day) {
+            long t = time + (long) random.nextInt((int) day);
+            String id = BackplaneMessage.generateMessageId(new Date(t));
+            assertEquals(id, Utils.ISO8601().parseDateTime(id.substring(0, 24)).getMillis(), BackplaneMessage.timeFromId(id));
+        }
+    }
+
+    @Test
+    public void testInvalidIds() {
+        String[] invalid = {
+                "", "garbage", "2012-13-01T00:00:00.000Z", "2012-01-01T24:00:00.000Z", "2012-01-01T00:60:00.000Z",
+                "2012-01-01 00:00:00.000Z", "2012-01-01T00:00:00.000", "1969-12-31T23:59:59.999Z", "2O12-01-01T00:00:00.000Z"
+        };
+        for (String id : invalid) {
+            assertEquals(id, 0L, BackplaneMessage.timeFromId(id));
+            try {
+                BackplaneMessage.dateFromId(id);
+                fail("expected MessageException for " + id);
+            } catch (Exception e) {
+                // not declared by the scala method
+                assertTrue(e instanceof MessageException);
+            }
+        }
+        assertEquals(0L, BackplaneMessage.timeFromId(null));
+    }
+
+    @Test
+    public void testCompactIdRoundTrip() {
+        long[] times = {0L, 1L, System.currentTimeMillis(), Utils.ISO8601().parseDateTime("2100-03-01T00:00:00.000Z").getMillis(), (1L << 42) - 1};
+        for (long time : times) {
+            String id = BackplaneMessage.generateCompactId(time);
+            assertEquals(13, id.length());
+            assertTrue(id, BackplaneMessage.isCompactId(id));
+            assertEquals(id, time, BackplaneMessage.timeFromId(id));
+            assertEquals(id, new Date(time), BackplaneMessage.dateFromId(id).get());
+        }
+        assertFalse(BackplaneMessage.isCompactId("2012-01-01T0"));
+        assertFalse(BackplaneMessage.isCompactId("0123456789abw"));
+        assertFalse(BackplaneMessage.isCompactId("w123456789abc"));
+    }
+
+    @Test
+    public void testCompactIdSortOrder() {
+        long now = System.currentTimeMillis();
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            ids.add(BackplaneMessage.generateCompactId(now + i / 10)); // 10 IDs per millisecond
+        }
+        List<String> sorted = new ArrayList<String>(ids);
+        Collections.sort(sorted);
+        assertEquals(ids.size(), new HashSet<String>(ids).size());
+        for (int i = 1; i < sorted.size(); i++) {
+            assertTrue(BackplaneMessage.timeFromId(sorted.get(i - 1)) <= BackplaneMessage.timeFromId(sorted.get(i)));
+        }
+    }
+
+    @Test
+    public void testCompactIdsAfterIso8601Ids() {
+        long now = System.currentTimeMillis();
+        String compact = BackplaneMessage.generateCompactId(now - 1000);
+        String iso = BackplaneMessage.generateMessageId(new Date(now));
+        assertTrue(compact.compareTo(iso) > 0);
+    }
+
+    @Test
+    public void testAfterAnyIdAt() {
+        long now = System.currentTimeMillis();
+        String id = BackplaneMessage.generateCompactId(now);
+        String after = BackplaneMessage.afterAnyIdAt(id);
+        assertTrue(after.compareTo(id) > 0);
+        assertTrue(after.compareTo(BackplaneMessage.generateCompactId(now)) > 0);
+        assertTrue(after.compareTo(BackplaneMessage.generateCompactId(now + 1)) < 0);
+
+        String iso = BackplaneMessage.generateMessageId(new Date(now));
+        String isoAfter = BackplaneMessage.afterAnyIdAt(iso);
+        assertTrue(isoAfter.compareTo(BackplaneMessage.generateMessageId(new Date(now))) > 0);
+        assertTrue(isoAfter.compareTo(BackplaneMessage.generateMessageId(new Date(now + 1))) < 0);
+    }
+}
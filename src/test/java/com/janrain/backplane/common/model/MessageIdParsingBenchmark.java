@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.common.model;
+
+import com.janrain.util.Utils;
+
+import java.util.Date;
+
+/**
+ * Compares the cost per call of extracting the time from message IDs:
+ * - joda: substring and Joda parseDateTime of ISO8601 timestamp prefixed IDs, as before the fixed-position parser
+ * - iso8601: BackplaneMessage.timeFromId() of ISO8601 timestamp prefixed IDs
+ * - compact: BackplaneMessage.timeFromId() of compact IDs
+ *
+ * Run with: java ... MessageIdParsingBenchmark [iterations]
+ */
+public class MessageIdParsingBenchmark {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        long now = System.currentTimeMillis();
+        final String[] isoIds = new String[IDS];
+        final String[] compactIds = new String[IDS];
+        for (int i = 0; i < IDS; i++) {
+            isoIds[i] = BackplaneMessage.generateMessageId(new Date(now + i));
+            compactIds[i] = BackplaneMessage.generateCompactId(now + i);
+        }
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + round + ":");
+            run("joda", iterations, new Parser() {
+                @Override
+                public long parse(int i) {
+                    return Utils.ISO8601().parseDateTime(isoIds[i].substring(0, 24)).getMillis();
+                }
+            });
+            run("iso8601", iterations, new Parser() {
+                @Override
+                public long parse(int i) {
+                    return BackplaneMessage.timeFromId(isoIds[i]);
+                }
+            });
+            run("compact", iterations, new Parser() {
+                @Override
+                public long parse(int i) {
+                    return BackplaneMessage.timeFromId(compactIds[i]);
+                }
+            });
+        }
+    }
+
+    // - PRIVATE
+
+    private static final int DEFAULT_ITERATIONS = 5000000;
+    private static final int IDS = 1024;
+
+    private static interface Parser {
+        long parse(int i);
+    }
+
+    private static void run(String name, int iterations, Parser parser) {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            checksum += parser.parse(i & (IDS - 1));
+        }
+        long nanos = System.nanoTime() - start;
+        // the checksum keeps the calls from being optimized away
+        System.out.println(String.format("  %-10s %6d ns/call (checksum %d)", name, nanos / iterations, checksum));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.dao.redis;
+
+import org.junit.Test;
+import scala.collection.JavaConversions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.janrain.backplane.dao.redis.RedisScriptTestSupport.*;
+import static org.junit.Assert.*;
+
+public class BatchWritesTest {
+
+    @Test
+    public void testEmpty() {
+        BatchWrites writes = new BatchWrites();
+        assertTrue(writes.isEmpty());
+        assertTrue(writes.scriptArgs().isEmpty());
+    }
+
+    @Test
+    public void testScriptArgs() {
+        BatchWrites writes = new BatchWrites();
+        writes.hset("item", "field", "value");
+        writes.expire("item", 60);
+        writes.zadd("index", 1000, "m1");
+        assertFalse(writes.isEmpty());
+        assertEquals(strings(
+                3, "HSET", "item", "field", "value",
+                2, "EXPIRE", "item", 60,
+                3, "ZADD", "index", 1000.0, "m1"),
+                strings(writes.scriptArgs()));
+    }
+
+    @Test
+    public void testHmsetFieldsFlattened() {
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        fields.put("id", "m1");
+        fields.put("channel", "channel1");
+        BatchWrites writes = new BatchWrites();
+        writes.hmset("item", JavaConversions.mapAsScalaMap(fields));
+        assertEquals(strings(5, "HMSET", "item", "id", "m1", "channel", "channel1"), strings(writes.scriptArgs()));
+    }
+
+    @Test
+    public void testCommandsInOrder() {
+        BatchWrites writes = new BatchWrites();
+        writes.zremrangebyscore("index", "-inf", "(1000");
+        writes.sadd("indexes", "index");
+        writes.rpush("queue", "m1");
+        writes.hdel("starts", 0);
+        assertEquals(strings(
+                3, "ZREMRANGEBYSCORE", "index", "-inf", "(1000",
+                2, "SADD", "indexes", "index",
+                2, "RPUSH", "queue", "m1",
+                2, "HDEL", "starts", 0),
+                strings(writes.scriptArgs()));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.dao.redis;
+
+import redis.clients.jedis.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.janrain.backplane.dao.redis.RedisScriptTestSupport.*;
+
+/**
+ * Compares message processor batch commits against the primary redis server (REDIS_SERVER_PRIMARY):
+ * - script: MessageProcessorDaoSupport.COMMIT_SCRIPT, one round trip
+ * - transaction: WATCH last ID, GET last ID, MULTI / EXEC with the same writes, as before the commit script
+ * Each batch writes a message hash and three index entries per message, trims the queue and sets the last ID;
+ * the script also publishes the batch's (empty) feed entry.
+ *
+ * Run with: java -DREDIS_SERVER_PRIMARY=host:port ... CommitBenchmark [batches]
+ */
+public class CommitBenchmark {
+
+    public static void main(String[] args) {
+        int batches = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_BATCHES;
+        CommitBenchmark benchmark = new CommitBenchmark();
+        try {
+            for (int batchSize : new int[] {1, 10, 100}) {
+                System.out.println("batch size " + batchSize + ":");
+                benchmark.run("script", batches, batchSize, true);
+                benchmark.run("transaction", batches, batchSize, false);
+            }
+        } finally {
+            benchmark.redis.cleanup();
+        }
+    }
+
+    // - PRIVATE
+
+    private static final int DEFAULT_BATCHES = 2000;
+    private static final String PAYLOAD = "{\"message\":\"a typical message payload, about a hundred bytes long, with a few fields\"}";
+
+    private final RedisScriptTestSupport redis = new RedisScriptTestSupport();
+
+    private long time = 0;
+
+    private void run(String name, int batches, int batchSize, boolean scripted) {
+        for (int i = 0; i < batches / 10; i++) {
+            commit(batchSize, scripted); // warm up
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < batches; i++) {
+            commit(batchSize, scripted);
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        System.out.println(String.format("  %-15s %8d us/batch %8d us/message", name, micros / batches, micros / batches / batchSize));
+    }
+
+    private void commit(int batchSize, boolean scripted) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < batchSize; i++) {
+            ids.add("m" + (++time));
+            redis.jedis().rpush(redis.key("queue"), "queued message");
+        }
+        String lastId = ids.get(ids.size() - 1);
+        if (scripted) {
+            BatchWrites writes = new BatchWrites();
+            for (String id : ids) {
+                writes.hset(redis.key("item:" + id), "payload", PAYLOAD);
+                writes.zadd(redis.key("index"), messageTime(id), id);
+                writes.zadd(redis.key("channel"), messageTime(id), id);
+                writes.zadd(redis.key("bus"), messageTime(id), id);
+            }
+            String expectedLastId = redis.jedis().get(redis.key("lastId"));
+            redis.eval(MessageProcessorDaoSupport$.MODULE$.COMMIT_SCRIPT(),
+                    list(redis.key("lastId"), redis.key("queue"), redis.key("lastCommitTime"), redis.key("index"), redis.key("reservation")),
+                    concat(strings(expectedLastId == null ? "" : expectedLastId, "", lastId, messageTime(lastId), batchSize,
+                                   redis.key("notifications"), ""),
+                           strings(writes.scriptArgs())));
+        } else {
+            redis.jedis().watch(redis.key("lastId"));
+            redis.jedis().get(redis.key("lastId"));
+            Transaction t = redis.jedis().multi();
+            for (String id : ids) {
+                t.hset(redis.key("item:" + id), "payload", PAYLOAD);
+                t.zadd(redis.key("index"), messageTime(id), id);
+                t.zadd(redis.key("channel"), messageTime(id), id);
+                t.zadd(redis.key("bus"), messageTime(id), id);
+            }
+            t.ltrim(redis.key("queue"), batchSize, -1);
+            t.set(redis.key("lastId"), lastId);
+            t.exec();
+        }
+    }
+
+    private static long messageTime(String id) {
+        return Long.parseLong(id.substring(1));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.dao.redis;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.janrain.backplane.dao.redis.RedisScriptTestSupport.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests MessageProcessorDaoSupport.COMMIT_SCRIPT and RESERVE_SCRIPT against the primary redis server,
+ * committing for the first of two processor shards.
+ */
+public class CommitScriptTest {
+
+    @Before
+    public void setUp() {
+        redis = new RedisScriptTestSupport();
+        redis.jedis().rpush(redis.key("queue"), "q1", "q2", "q3");
+    }
+
+    @After
+    public void tearDown() {
+        redis.cleanup();
+    }
+
+    @Test
+    public void testCommit() {
+        assertEquals(list("1"), commit("", "", "m2", 2000, 2, batch("m1", 1000, "m2", 2000)));
+
+        assertEquals("m2", redis.jedis().get(redis.key("lastId")));
+        assertEquals("2000", redis.jedis().get(redis.key("lastCommitTime")));
+        assertEquals(list("q3"), redis.jedis().lrange(redis.key("queue"), 0, -1));
+        assertEquals("channel1", redis.jedis().hget(redis.key("item:m1"), "channel"));
+        assertEquals(2L, (long) redis.jedis().zcard(redis.key("index")));
+    }
+
+    @Test
+    public void testDirectWriteLeavesQueue() {
+        assertEquals(list("1"), commit("", "", "m1", 1000, 0, batch("m1", 1000)));
+        assertEquals(3L, (long) redis.jedis().llen(redis.key("queue")));
+        assertEquals("m1", redis.jedis().get(redis.key("lastId")));
+    }
+
+    @Test
+    public void testLastIdChanged() {
+        redis.jedis().set(redis.key("lastId"), "m0");
+        assertEquals(list("0"), commit("", "", "m1", 1000, 1, batch("m1", 1000)));
+
+        assertNothingWritten("m0");
+        assertEquals(list("1"), commit("m0", "", "m1", 1000, 1, batch("m1", 1000)));
+    }
+
+    @Test
+    public void testReservationReleased() {
+        redis.jedis().set(redis.key("reservation:0"), "1000 token");
+        assertEquals(list("1"), commit("", "1000 token", "m1", 1000, 1, batch("m1", 1000)));
+        assertFalse(redis.jedis().exists(redis.key("reservation:0")));
+    }
+
+    @Test
+    public void testReservationLost() {
+        assertEquals(list("0"), commit("", "1000 token", "m1", 1000, 1, batch("m1", 1000)));
+        assertNothingWritten(null);
+
+        // expired, then reserved again by a new leader
+        redis.jedis().set(redis.key("reservation:0"), "1000 other");
+        assertEquals(list("0"), commit("", "1000 token", "m1", 1000, 1, batch("m1", 1000)));
+        assertNothingWritten(null);
+        assertEquals("1000 other", redis.jedis().get(redis.key("reservation:0")));
+    }
+
+    @Test
+    public void testReservationReleasedIfLastIdChanged() {
+        redis.jedis().set(redis.key("lastId"), "m0");
+        redis.jedis().set(redis.key("reservation:0"), "1000 token");
+        assertEquals(list("0"), commit("", "1000 token", "m1", 1000, 1, batch("m1", 1000)));
+
+        assertNothingWritten("m0");
+        assertFalse(redis.jedis().exists(redis.key("reservation:0")));
+    }
+
+    @Test
+    public void testLaterCommitOfOtherShard() {
+        // the other shard reserved after this one and committed first
+        redis.jedis().set(redis.key("lastCommitTime"), "5000");
+        redis.jedis().set(redis.key("reservation:0"), "1000 token");
+        assertEquals(list("1"), commit("", "1000 token", "m1", 1000, 1, batch("m1", 1000)));
+        assertEquals("5000", redis.jedis().get(redis.key("lastCommitTime")));
+    }
+
+    @Test
+    public void testFeedEntry() throws InterruptedException {
+        redis.jedis().zadd(redis.key("index"), 500, "bus1 channel1 m0 -");
+        assertEquals("m0 m2 1 s1 s2", publishedFeed("m2", 2000, batch("m1", 1000, "m2", 2000)));
+    }
+
+    @Test
+    public void testFeedNotOrderedBeforeOtherReservation() throws InterruptedException {
+        redis.jedis().set(redis.key("reservation:1"), "1500 other");
+        assertEquals(" m2 0 s1 s2", publishedFeed("m2", 2000, batch("m1", 1000, "m2", 2000)));
+
+        redis.jedis().set(redis.key("reservation:1"), "3001 other");
+        assertEquals("m2 m3 1 s1 s2", publishedFeed("m3", 3000, batch("m3", 3000)));
+    }
+
+    @Test
+    public void testReserve() {
+        redis.jedis().set(redis.key("lastCommitTime"), "1000");
+        assertEquals(list("1001 token"), redis.eval(MessageProcessorDaoSupport$.MODULE$.RESERVE_SCRIPT(),
+                list(redis.key("lastCommitTime"), redis.key("reservation:0")), strings("token", 5000)));
+
+        assertEquals("1001 token", redis.jedis().get(redis.key("reservation:0")));
+        assertTrue(redis.jedis().ttl(redis.key("reservation:0")) > 0);
+    }
+
+    // - PRIVATE
+
+    private RedisScriptTestSupport redis;
+
+    private BatchWrites batch(Object... idsAndTimes) {
+        BatchWrites writes = new BatchWrites();
+        for (int i = 0; i < idsAndTimes.length; i += 2) {
+            writes.hset(redis.key("item:" + idsAndTimes[i]), "channel", "channel1");
+            writes.zadd(redis.key("index"), ((Number) idsAndTimes[i + 1]).doubleValue(), "bus1 channel1 " + idsAndTimes[i] + " -");
+        }
+        return writes;
+    }
+
+    private List<String> commit(String expectedLastId, String reservation, String lastId, long lastTime, int queuedCount, BatchWrites writes) {
+        return redis.eval(MessageProcessorDaoSupport$.MODULE$.COMMIT_SCRIPT(),
+                list(redis.key("lastId"), redis.key("queue"), redis.key("lastCommitTime"), redis.key("index"),
+                     redis.key("reservation:0"), redis.key("reservation:1")),
+                concat(strings(expectedLastId, reservation, lastId, lastTime, queuedCount, redis.key("notifications"), "s1 s2"),
+                       strings(writes.scriptArgs())));
+    }
+
+    /** @return the feed entry published by a (direct write) commit after the current last ID */
+    private String publishedFeed(final String lastId, final long lastTime, final BatchWrites writes) throws InterruptedException {
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        final BlockingQueue<String> published = new LinkedBlockingQueue<String>();
+        final JedisPubSub subscriber = new JedisPubSub() {
+            public void onMessage(String channel, String message) {
+                published.add(message);
+                unsubscribe();
+            }
+            public void onSubscribe(String channel, int subscribedChannels) {
+                subscribed.countDown();
+            }
+            public void onPMessage(String pattern, String channel, String message) { }
+            public void onUnsubscribe(String channel, int subscribedChannels) { }
+            public void onPUnsubscribe(String pattern, int subscribedChannels) { }
+            public void onPSubscribe(String pattern, int subscribedChannels) { }
+        };
+        final Jedis connection = redis.connect();
+        Thread subscriberThread = new Thread(new Runnable() {
+            public void run() {
+                connection.subscribe(subscriber, redis.key("notifications"));
+            }
+        });
+        subscriberThread.start();
+        try {
+            assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+            String expectedLastId = redis.jedis().get(redis.key("lastId"));
+            assertEquals(list("1"), commit(expectedLastId == null ? "" : expectedLastId, "", lastId, lastTime, 0, writes));
+            return published.poll(5, TimeUnit.SECONDS);
+        } finally {
+            subscriberThread.join(5000);
+            connection.disconnect();
+        }
+    }
+
+    private void assertNothingWritten(String lastId) {
+        assertEquals(lastId, redis.jedis().get(redis.key("lastId")));
+        assertEquals(3L, (long) redis.jedis().llen(redis.key("queue")));
+        assertFalse(redis.jedis().exists(redis.key("item:m1")));
+        assertFalse(redis.jedis().exists(redis.key("index")));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.dao.redis;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.List;
+
+import static com.janrain.backplane.dao.redis.RedisScriptTestSupport.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests RedisMessageProcessor.EXPIRY_DRAIN_SCRIPT and PRE_EXPIRY_INDEX_SWEEP_SCRIPT against the primary redis server.
+ */
+public class ExpiryDrainScriptTest {
+
+    @Before
+    public void setUp() {
+        redis = new RedisScriptTestSupport();
+    }
+
+    @After
+    public void tearDown() {
+        redis.cleanup();
+    }
+
+    @Test
+    public void testDrainExpired() throws Exception {
+        addMessage("m1", 1000, redis.key("fieldIndex:type:type 1"), redis.key("fieldIndex:source:http://\u00e9t\u00e9.com"));
+        addMessage("m2", 2000);
+        addMessage("m3", 3000, redis.key("fieldIndex:type:type 1"));
+
+        assertEquals(list("2", "1000"), drain(2500, 10));
+
+        assertFalse(redis.jedis().exists(redis.key("item:m1")));
+        assertFalse(redis.jedis().exists(redis.key("item:m2")));
+        assertTrue(redis.jedis().exists(redis.key("item:m3")));
+        assertEquals(Collections.singleton("m3"), redis.jedis().zrange(redis.key("bus:bus1"), 0, -1));
+        assertEquals(Collections.singleton("m3"), redis.jedis().zrange(redis.key("channel:channel1"), 0, -1));
+        assertEquals(Collections.singleton("m3"), redis.jedis().zrange(redis.key("fieldIndex:type:type 1"), 0, -1));
+        assertFalse(redis.jedis().exists(redis.key("fieldIndex:source:http://\u00e9t\u00e9.com")));
+        assertEquals(1L, (long) redis.jedis().zcard(redis.key("index")));
+        assertEquals(1L, (long) redis.jedis().zcard(redis.key("expiry")));
+    }
+
+    @Test
+    public void testBatchSize() throws Exception {
+        addMessage("m1", 1000);
+        addMessage("m2", 2000);
+        addMessage("m3", 3000);
+
+        assertEquals(list("2", "1000"), drain(5000, 2));
+        assertEquals(list("1", "3000"), drain(5000, 2));
+        assertEquals(list("0", "5000"), drain(5000, 2));
+        assertEquals(0L, (long) redis.jedis().zcard(redis.key("index")));
+    }
+
+    @Test
+    public void testSweepPreExpiryIndex() throws Exception {
+        addMessage("m1", 1000);
+        addMessage("m2", 2000);
+        addMessage("m3", 3000);
+        // indexed before the expiry index, bus and channel indexes idle since
+        redis.jedis().zrem(redis.key("expiry"), "bus1 channel1 m1 null", "bus1 channel1 m2 null");
+        redis.jedis().del(redis.key("item:m1"));
+
+        assertEquals(list("2", "1", "2000"), sweep("-inf", 2500, 10));
+
+        assertNull(redis.jedis().zscore(redis.key("bus:bus1"), "m1"));
+        assertNull(redis.jedis().zscore(redis.key("channel:channel1"), "m1"));
+        assertEquals(2L, (long) redis.jedis().zcard(redis.key("channel:channel1")));
+        assertEquals(2L, (long) redis.jedis().zcard(redis.key("index")));
+        assertTrue(redis.jedis().ttl(redis.key("bus:bus1")) > 0);
+        assertTrue(redis.jedis().ttl(redis.key("channel:channel1")) > 0);
+    }
+
+    @Test
+    public void testSweepBatches() throws Exception {
+        addMessage("m1", 1000);
+        addMessage("m2", 2000);
+        addMessage("m3", 3000);
+        redis.jedis().del(redis.key("item:m1"), redis.key("item:m2"), redis.key("item:m3"));
+
+        assertEquals(list("2", "0", "2000"), sweep("-inf", 5000, 2));
+        assertEquals(list("1", "0", "3000"), sweep("2000", 5000, 2));
+        assertEquals(list("0", "0", ""), sweep("3000", 5000, 2));
+        assertFalse(redis.jedis().exists(redis.key("index")));
+    }
+
+    // - PRIVATE
+
+    private RedisScriptTestSupport redis;
+
+    /** expires at the message time */
+    private void addMessage(String id, long time, String... indexKeys) throws UnsupportedEncodingException {
+        String metaData = "bus1 channel1 " + id + " null";
+        redis.jedis().hset(redis.key("item:" + id), "id", id);
+        redis.jedis().zadd(redis.key("bus:bus1"), time, id);
+        redis.jedis().zadd(redis.key("channel:channel1"), time, id);
+        redis.jedis().zadd(redis.key("index"), time, metaData);
+        // same as MessageProcessorDaoSupport.expiryEntry()
+        StringBuilder entry = new StringBuilder(metaData);
+        for (int i = 0; i < indexKeys.length; i++) {
+            redis.jedis().zadd(indexKeys[i], time, id);
+            entry.append(i == 0 ? "\n" : "").append(indexKeys[i].getBytes("UTF-8").length).append(":").append(indexKeys[i]);
+        }
+        redis.jedis().zadd(redis.key("expiry"), time, entry.toString());
+    }
+
+    private List<String> sweep(String from, long until, int batchSize) {
+        return redis.eval(RedisMessageProcessor$.MODULE$.PRE_EXPIRY_INDEX_SWEEP_SCRIPT(),
+                list(redis.key("index")),
+                strings(from, until, batchSize, redis.key("item:"), redis.key("bus:"), redis.key("channel:"), 604800));
+    }
+
+    private List<String> drain(long now, int batchSize) {
+        return redis.eval(RedisMessageProcessor$.MODULE$.EXPIRY_DRAIN_SCRIPT(),
+                list(redis.key("expiry"), redis.key("index")),
+                strings(now, batchSize, redis.key("item:"), redis.key("bus:"), redis.key("channel:")));
+    }
+}
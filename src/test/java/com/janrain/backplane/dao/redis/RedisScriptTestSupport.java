@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.dao.redis;
+
+import com.janrain.backplane.config.SystemProperties;
+import com.janrain.util.RandomUtils;
+import redis.clients.jedis.Jedis;
+import scala.collection.JavaConversions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs redis scripts against the primary redis server (REDIS_SERVER_PRIMARY), under a random key prefix for each test.
+ */
+public class RedisScriptTestSupport {
+
+    public RedisScriptTestSupport() {
+        jedis = connect();
+    }
+
+    public Jedis jedis() {
+        return jedis;
+    }
+
+    /** @return a new connection to the primary redis server, e.g. for a subscriber; to be disconnected by the caller */
+    public Jedis connect() {
+        String[] hostAndPort = System.getProperty(SystemProperties.REDIS_SERVER_PRIMARY()).split(":");
+        return new Jedis(hostAndPort[0], hostAndPort.length > 1 ? Integer.parseInt(hostAndPort[1]) : 6379);
+    }
+
+    /** @return the key, under this test's key prefix */
+    public String key(String key) {
+        return prefix + key;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<String> eval(RedisScript script, List<String> keys, List<String> args) {
+        return (List<String>) jedis.eval(script.luaCode(), keys, args);
+    }
+
+    /** removes all keys under this test's key prefix and disconnects */
+    public void cleanup() {
+        Set<String> keys = jedis.keys(prefix + "*");
+        if (! keys.isEmpty()) {
+            jedis.del(keys.toArray(new String[keys.size()]));
+        }
+        jedis.disconnect();
+    }
+
+    public static List<String> strings(Object... values) {
+        List<String> result = new ArrayList<String>();
+        for (Object value : values) {
+            result.add(String.valueOf(value));
+        }
+        return result;
+    }
+
+    /** @return the script arguments as sent by the scala redis client (string representation of each value) */
+    public static List<String> strings(scala.collection.Seq<Object> values) {
+        return strings(JavaConversions.seqAsJavaList(values).toArray());
+    }
+
+    public static List<String> concat(List<String> first, List<String> second) {
+        List<String> result = new ArrayList<String>(first);
+        result.addAll(second);
+        return result;
+    }
+
+    public static List<String> list(String... values) {
+        return new ArrayList<String>(Arrays.asList(values));
+    }
+
+    // - PRIVATE
+
+    private final Jedis jedis;
+    private final String prefix = "test:" + RandomUtils.randomString(10) + ":";
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server2.dao.redis;
+
+import com.janrain.backplane.dao.redis.RedisScriptTestSupport;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ZParams;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.janrain.backplane.dao.redis.RedisScriptTestSupport.*;
+
+/**
+ * Compares v2 scope retrieval strategies against the primary redis server (REDIS_SERVER_PRIMARY),
+ * on a generated data set of MESSAGES messages spread over BUSES buses and CHANNELS channels:
+ * - script: RedisBackplane2MessageDao.SCOPE_RETRIEVAL_SCRIPT, one round trip
+ * - pipeline: temporary union / intersection sorted sets, then the message hashes, two round trips
+ * - single channel: for one bus / one channel scopes, the channel index range then the message hashes, two round trips
+ *
+ * Run with: java -DREDIS_SERVER_PRIMARY=host:port ... ScopeRetrievalBenchmark [iterations]
+ */
+public class ScopeRetrievalBenchmark {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        ScopeRetrievalBenchmark benchmark = new ScopeRetrievalBenchmark();
+        try {
+            benchmark.populate();
+            for (String since : new String[] {"0", Long.toString(MESSAGES - 50)}) {
+                System.out.println("since " + since + ":");
+                benchmark.run("script", iterations, benchmark.scripted(since, benchmark.channels, benchmark.buses));
+                benchmark.run("pipeline", iterations, benchmark.pipelined(since));
+                benchmark.run("1ch script", iterations, benchmark.scripted(since, list(benchmark.channelKey(1)), benchmark.buses));
+                benchmark.run("1ch fast path", iterations, benchmark.singleChannel(since));
+            }
+        } finally {
+            benchmark.redis.cleanup();
+        }
+    }
+
+    // - PRIVATE
+
+    private static final int DEFAULT_ITERATIONS = 2000;
+    private static final int MESSAGES = 10000;
+    private static final int BUSES = 10;
+    private static final int CHANNELS = 500;
+    private static final int FRAME = 25;
+
+    private final RedisScriptTestSupport redis = new RedisScriptTestSupport();
+
+    // scope: one bus, three channels
+    private final List<String> channels = list(channelKey(1), channelKey(2), channelKey(3));
+    private final List<String> buses = list(busKey(1));
+
+    private String busKey(int bus) {
+        return redis.key("bus:bus" + bus);
+    }
+
+    private String channelKey(int channel) {
+        return redis.key("channel:channel" + channel);
+    }
+
+    private void populate() {
+        Pipeline p = redis.jedis().pipelined();
+        for (int i = 0; i < MESSAGES; i++) {
+            String id = "m" + i;
+            int bus = i % BUSES;
+            int channel = i % CHANNELS;
+            p.hset(redis.key("item:" + id), "id", id);
+            p.hset(redis.key("item:" + id), "bus", "bus" + bus);
+            p.hset(redis.key("item:" + id), "channel", "channel" + channel);
+            p.hset(redis.key("item:" + id), "payload", "{\"message\":\"payload of message " + id + "\"}");
+            p.zadd(busKey(bus), i, id);
+            p.zadd(channelKey(channel), i, id);
+            p.zadd(redis.key("index"), i, "bus" + bus + " channel" + channel + " " + id + " -");
+        }
+        p.sync();
+    }
+
+    private void run(String name, int iterations, Runnable retrieval) {
+        for (int i = 0; i < iterations / 10; i++) {
+            retrieval.run(); // warm up
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            retrieval.run();
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        System.out.println(String.format("  %-15s %8d us/retrieval", name, micros / iterations));
+    }
+
+    private Runnable scripted(final String since, final List<String> channels, final List<String> buses) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                redis.eval(RedisBackplane2MessageDao$.MODULE$.SCOPE_RETRIEVAL_SCRIPT(),
+                        concat(concat(channels, buses), list(redis.key("index"))),
+                        strings(since, FRAME, channels.size(), redis.key("item:"), buses.size(), 0, 1, 0));
+            }
+        };
+    }
+
+    private Runnable pipelined(final String since) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                String channelsUnion = redis.key("union:channels");
+                String busesUnion = redis.key("union:buses");
+                Pipeline p = redis.jedis().pipelined();
+                Response<Set<String>> last = p.zrange(redis.key("index"), -1, -1);
+                p.zunionstore(channelsUnion, new ZParams().aggregate(ZParams.Aggregate.MAX), channels.toArray(new String[channels.size()]));
+                p.zunionstore(busesUnion, new ZParams().aggregate(ZParams.Aggregate.MAX), buses.toArray(new String[buses.size()]));
+                p.zinterstore(channelsUnion, new ZParams().aggregate(ZParams.Aggregate.MAX), channelsUnion, busesUnion);
+                Response<Set<String>> ids = p.zrangeByScore(channelsUnion, Long.parseLong(since) + 1, Double.MAX_VALUE, 0, FRAME + 1); // integer scores
+                p.del(channelsUnion, busesUnion);
+                p.sync();
+
+                p = redis.jedis().pipelined();
+                List<Response<Map<String, String>>> messages = new ArrayList<Response<Map<String, String>>>();
+                for (String id : ids.get()) {
+                    messages.add(p.hgetAll(redis.key("item:" + id)));
+                }
+                p.sync();
+                last.get();
+            }
+        };
+    }
+
+    private Runnable singleChannel(final String since) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                Pipeline p = redis.jedis().pipelined();
+                Response<Set<String>> last = p.zrange(redis.key("index"), -1, -1);
+                Response<Set<String>> ids = p.zrangeByScore(channelKey(1), Long.parseLong(since) + 1, Double.MAX_VALUE, 0, FRAME + 1);
+                p.sync();
+
+                p = redis.jedis().pipelined();
+                for (String id : ids.get()) {
+                    p.hgetAll(redis.key("item:" + id));
+                }
+                p.sync();
+                last.get();
+            }
+        };
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server2.dao.redis;
+
+import com.janrain.backplane.dao.redis.RedisScriptTestSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.janrain.backplane.dao.redis.RedisScriptTestSupport.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests RedisBackplane2MessageDao.SCOPE_RETRIEVAL_SCRIPT against the primary redis server.
+ */
+public class ScopeRetrievalScriptTest {
+
+    @Before
+    public void setUp() {
+        redis = new RedisScriptTestSupport();
+        addMessage("m1", 1000, "bus1", "channel1", "type1");
+        addMessage("m2", 2000, "bus2", "channel1", "type2");
+        addMessage("m3", 3000, "bus1", "channel1", "type2");
+        addMessage("m4", 4000, "bus1", "channel2", "type1");
+    }
+
+    @After
+    public void tearDown() {
+        redis.cleanup();
+    }
+
+    @Test
+    public void testChannelsCheckedAgainstBuses() {
+        List<String> result = retrieve(list("channel1"), list("bus1"), 0, 0, null, 0);
+        assertEquals("bus1 channel2 m4 -", result.get(0));
+        assertEquals("0", result.get(1));
+        assertEquals("m3", result.get(2));
+        assertEquals(list("m1", "m3"), ids(result));
+    }
+
+    @Test
+    public void testBusesOnly() {
+        List<String> result = retrieve(Collections.<String>emptyList(), list("bus1", "bus2"), 0, 0, null, 0);
+        assertEquals(list("m1", "m2", "m3", "m4"), ids(result));
+    }
+
+    @Test
+    public void testSince() {
+        List<String> result = retrieve(list("channel1"), Collections.<String>emptyList(), 1000, 0, null, 0);
+        assertEquals(list("m2", "m3"), ids(result));
+    }
+
+    @Test
+    public void testLimit() {
+        List<String> result = retrieve(list("channel1"), list("bus1"), 0, 1, null, 0);
+        assertEquals("1", result.get(1));
+        assertEquals("m1", result.get(2));
+        assertEquals(list("m1"), ids(result));
+
+        result = retrieve(list("channel1"), list("bus1"), 0, 2, null, 0);
+        assertEquals("0", result.get(1));
+        assertEquals(list("m1", "m3"), ids(result));
+    }
+
+    @Test
+    public void testMessageFields() {
+        List<String> result = retrieve(list("channel2"), Collections.<String>emptyList(), 0, 0, null, 0);
+        assertEquals("m4", result.get(3));
+        assertEquals("8", result.get(4));
+        List<String> fields = result.subList(5, 13);
+        assertTrue(fields.contains("type1"));
+        assertEquals(fields.indexOf("type") + 1, fields.indexOf("type1"));
+    }
+
+    @Test
+    public void testExpiredMessagesSkipped() {
+        redis.jedis().del(redis.key("item:m3"));
+        List<String> result = retrieve(list("channel1"), Collections.<String>emptyList(), 0, 0, null, 0);
+        assertEquals(list("m1", "m2"), ids(result));
+        // the last ID within the limit is still reported
+        assertEquals("m3", result.get(2));
+    }
+
+    @Test
+    public void testUsableSecondaryIndex() {
+        redis.jedis().hset(redis.key("fieldIndexStarts:type"), "0", "0");
+        List<String> result = retrieve(list("channel1"), Collections.<String>emptyList(), 0, 1, "type2", 1);
+        assertEquals("1", result.get(1));
+        assertEquals(list("m2"), ids(result));
+    }
+
+    @Test
+    public void testSecondaryIndexStartedAfterSince() {
+        redis.jedis().hset(redis.key("fieldIndexStarts:type"), "0", "1500");
+        List<String> result = retrieve(list("channel1"), Collections.<String>emptyList(), 0, 1, "type2", 1);
+        // not usable: no limit, no filtering, left to the caller
+        assertEquals("0", result.get(1));
+        assertEquals(list("m1", "m2", "m3"), ids(result));
+    }
+
+    @Test
+    public void testCommitReservationCap() {
+        // an in-flight commit may still add messages from 3000 on, m3 is left for a later retrieval
+        List<String> result = retrieve(list("channel1"), Collections.<String>emptyList(), 0, 0, null, 2, "3000 token", null);
+        assertEquals("bus2 channel1 m2 -", result.get(0));
+        assertEquals(list("m1", "m2"), ids(result));
+
+        result = retrieve(list("channel1"), Collections.<String>emptyList(), 0, 0, null, 2, null, null);
+        assertEquals("bus1 channel2 m4 -", result.get(0));
+        assertEquals(list("m1", "m2", "m3"), ids(result));
+    }
+
+    @Test
+    public void testSecondaryIndexMissingShardStart() {
+        redis.jedis().hset(redis.key("fieldIndexStarts:type"), "0", "0");
+        List<String> result = retrieve(list("channel1"), Collections.<String>emptyList(), 0, 1, "type2", 2);
+        assertEquals(list("m1", "m2", "m3"), ids(result));
+    }
+
+    // - PRIVATE
+
+    private RedisScriptTestSupport redis;
+
+    private void addMessage(String id, long time, String bus, String channel, String type) {
+        redis.jedis().hset(redis.key("item:" + id), "id", id);
+        redis.jedis().hset(redis.key("item:" + id), "bus", bus);
+        redis.jedis().hset(redis.key("item:" + id), "channel", channel);
+        redis.jedis().hset(redis.key("item:" + id), "type", type);
+        redis.jedis().zadd(redis.key("channel:" + channel), time, id);
+        redis.jedis().zadd(redis.key("bus:" + bus), time, id);
+        redis.jedis().zadd(redis.key("fieldIndex:type:" + type), time, id);
+        redis.jedis().zadd(redis.key("index"), time, bus + " " + channel + " " + id + " -");
+    }
+
+    /**
+     * @param type secondary index value for the type field, null for none
+     * @param shards processor shards count, 0 if no secondary index is used
+     * @param reservations the shards' commit reservations (null if none), if any commit reservation keys are used
+     */
+    private List<String> retrieve(List<String> channels, List<String> buses, long sinceTime, int limit, String type, int shards,
+                                  String... reservations) {
+        List<String> keys = new ArrayList<String>();
+        for (String channel : channels) {
+            keys.add(redis.key("channel:" + channel));
+        }
+        for (String bus : buses) {
+            keys.add(redis.key("bus:" + bus));
+        }
+        if (type != null) {
+            keys.add(redis.key("fieldIndexStarts:type"));
+            keys.add(redis.key("fieldIndex:type:" + type));
+        }
+        for (int shard = 0; shard < reservations.length; shard++) {
+            if (reservations[shard] != null) {
+                redis.jedis().set(redis.key("commitReservation:" + shard), reservations[shard]);
+            } else {
+                redis.jedis().del(redis.key("commitReservation:" + shard));
+            }
+            keys.add(redis.key("commitReservation:" + shard));
+        }
+        keys.add(redis.key("index"));
+        List<String> args = strings(sinceTime, limit, channels.size(), redis.key("item:"), buses.size(), type == null ? 0 : 1, shards,
+                reservations.length);
+        if (type != null) {
+            args.add("1");
+        }
+        return redis.eval(RedisBackplane2MessageDao$.MODULE$.SCOPE_RETRIEVAL_SCRIPT(), keys, args);
+    }
+
+    /** @return the IDs of the messages in a script result */
+    private static List<String> ids(List<String> result) {
+        List<String> ids = new ArrayList<String>();
+        int i = 3;
+        while (i < result.size()) {
+            ids.add(result.get(i));
+            i += 2 + Integer.parseInt(result.get(i + 1));
+        }
+        return ids;
+    }
+}
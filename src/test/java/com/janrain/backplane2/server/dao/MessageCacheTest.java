@@ -0,0 +1,167 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane2.server.dao;
+
+import com.janrain.backplane.common.model.BackplaneMessage;
+import com.janrain.backplane.server2.model.Backplane2Message;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MessageCacheTest {
+
+    @Before
+    public void setUp() throws InterruptedException {
+        startId = BackplaneMessage.generateCompactId(System.currentTimeMillis() - 1000);
+        messages = new ArrayList<Backplane2Message>();
+        for (int i = 0; i < 5; i++) {
+            messages.add(newMessage());
+            Thread.sleep(2); // distinct message timestamps
+        }
+    }
+
+    @Test
+    public void testMessagesSinceWindowStart() {
+        MessageCache<Backplane2Message> cache = new MessageCache<Backplane2Message>(CACHE_SIZE);
+        cache.committed(startId, lastId(), messages);
+
+        MessageCache.Tail<Backplane2Message> tail = cache.getMessagesSince(startId);
+        assertNotNull(tail);
+        assertEquals(messages, tail.getMessages());
+        assertEquals(lastId(), tail.getLastId());
+    }
+
+    @Test
+    public void testMessagesSinceCachedMessage() {
+        MessageCache<Backplane2Message> cache = new MessageCache<Backplane2Message>(CACHE_SIZE);
+        cache.committed(startId, lastId(), messages);
+
+        MessageCache.Tail<Backplane2Message> tail = cache.getMessagesSince(messages.get(1).id());
+        assertNotNull(tail);
+        assertEquals(messages.subList(2, messages.size()), tail.getMessages());
+
+        tail = cache.getMessagesSince(lastId());
+        assertNotNull(tail);
+        assertTrue(tail.getMessages().isEmpty());
+        assertEquals(lastId(), tail.getLastId());
+    }
+
+    @Test
+    public void testMessagesSinceOutsideWindow() {
+        MessageCache<Backplane2Message> cache = new MessageCache<Backplane2Message>(CACHE_SIZE);
+        assertNull(cache.getMessagesSince(startId));
+
+        cache.committed(startId, lastId(), messages);
+        assertNull(cache.getMessagesSince(BackplaneMessage.generateCompactId(System.currentTimeMillis() - 2000)));
+        assertNull(cache.getMessagesSince(BackplaneMessage.generateCompactId(System.currentTimeMillis() + 1000)));
+    }
+
+    @Test
+    public void testConsecutiveBatches() {
+        MessageCache<Backplane2Message> cache = new MessageCache<Backplane2Message>(CACHE_SIZE);
+        cache.committed(startId, messages.get(1).id(), messages.subList(0, 2));
+        cache.committed(messages.get(1).id(), lastId(), messages.subList(2, messages.size()));
+
+        MessageCache.Tail<Backplane2Message> tail = cache.getMessagesSince(startId);
+        assertNotNull(tail);
+        assertEquals(messages, tail.getMessages());
+    }
+
+    @Test
+    public void testNonConsecutiveBatchRestartsWindow() {
+        MessageCache<Backplane2Message> cache = new MessageCache<Backplane2Message>(CACHE_SIZE);
+        cache.committed(startId, messages.get(1).id(), messages.subList(0, 2));
+        // batch with messages(2) missing
+        cache.committed(messages.get(2).id(), lastId(), messages.subList(3, messages.size()));
+
+        assertNull(cache.getMessagesSince(startId));
+        assertNull(cache.getMessagesSince(messages.get(1).id()));
+        MessageCache.Tail<Backplane2Message> tail = cache.getMessagesSince(messages.get(2).id());
+        assertNotNull(tail);
+        assertEquals(messages.subList(3, messages.size()), tail.getMessages());
+    }
+
+    @Test
+    public void testEvictionMovesWindowStart() {
+        MessageCache<Backplane2Message> cache = new MessageCache<Backplane2Message>(CACHE_SIZE);
+        cache.committed(startId, lastId(), messages);
+        // room for the last two (same size) messages only
+        cache.setMaxCacheSizeBytes(2 * sizeOf(messages.get(messages.size() - 1)) + 1);
+
+        assertNull(cache.getMessagesSince(startId));
+        assertEquals(messages.get(messages.size() - 2), cache.getFirstMessage());
+        MessageCache.Tail<Backplane2Message> tail = cache.getMessagesSince(messages.get(messages.size() - 2).id());
+        assertNotNull(tail);
+        assertEquals(messages.subList(messages.size() - 1, messages.size()), tail.getMessages());
+    }
+
+    @Test
+    public void testMissedClearsCache() {
+        MessageCache<Backplane2Message> cache = new MessageCache<Backplane2Message>(CACHE_SIZE);
+        cache.committed(startId, lastId(), messages);
+        cache.missed();
+
+        assertNull(cache.getMessagesSince(startId));
+        assertNull(cache.getFirstMessage());
+    }
+
+    @Test
+    public void testDisabledCache() {
+        MessageCache<Backplane2Message> cache = new MessageCache<Backplane2Message>(0);
+        cache.committed(startId, lastId(), messages);
+
+        assertNull(cache.getMessagesSince(startId));
+        assertNull(cache.get(messages.get(0).id()));
+    }
+
+    // - PRIVATE
+
+    private static final long CACHE_SIZE = 1024 * 1024;
+
+    private String startId;
+    private List<Backplane2Message> messages;
+
+    private String lastId() {
+        return messages.get(messages.size() - 1).id();
+    }
+
+    private static Backplane2Message newMessage() {
+        Map<String,Object> payload = new HashMap<String, Object>();
+        payload.put("key", "value");
+        Map<String,Object> upstream = new HashMap<String, Object>();
+        upstream.put("bus", "mybus.com");
+        upstream.put("channel", "testchannel");
+        upstream.put("type", "test_type");
+        upstream.put("payload", payload);
+        return new Backplane2Message("http://test.com", 60, 300, upstream);
+    }
+
+    /** same as MessageCache.sizeBytes() */
+    private static long sizeOf(Backplane2Message message) {
+        long bytes = 0;
+        for (Map.Entry<String, String> entry : scala.collection.JavaConversions.mapAsJavaMap(message).entrySet()) {
+            bytes += 2 * (entry.getKey().length() + entry.getValue().length());
+        }
+        return bytes;
+    }
+}